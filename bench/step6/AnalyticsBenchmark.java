@@ -0,0 +1,93 @@
+package step6;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Scan time of HistoryAnalytics reports over a synthetic history as the fork/join pool grows. The history spans
+// `years` years of loans over uniformly chosen books and users; about one return in five is late and 2% of loans are
+// still out. 50M rows take about 1.5 GB of columns, so run with -Xmx3g or more.
+//   java -Xmx3g step6.AnalyticsBenchmark rows=50000000 books=100000 users=1000000 authors=5000 years=5 threads=1,2,4,8 runs=5
+public class AnalyticsBenchmark {
+    public static void main(String[] args) {
+        int rows = 50_000_000, books = 100_000, users = 1_000_000, authors = 5000, years = 5, runs = 5;
+        int[] threads = null;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            switch (kv[0]) {
+                case "rows": rows = Integer.parseInt(kv[1]); break;
+                case "books": books = Integer.parseInt(kv[1]); break;
+                case "users": users = Integer.parseInt(kv[1]); break;
+                case "authors": authors = Integer.parseInt(kv[1]); break;
+                case "years": years = Integer.parseInt(kv[1]); break;
+                case "runs": runs = Integer.parseInt(kv[1]); break;
+                case "threads": threads = Arrays.stream(kv[1].split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                default: throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+        if (threads == null) {
+            List<Integer> counts = new ArrayList<>();
+            for (int t = 1; t < Runtime.getRuntime().availableProcessors(); t *= 2) counts.add(t);
+            counts.add(Runtime.getRuntime().availableProcessors());
+            threads = counts.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        long start = System.nanoTime();
+        HistoryAnalytics history = generate(rows, books, users, authors, years);
+        System.out.printf("%s, built in %d ms on %d cores%n", history, (System.nanoTime() - start) / 1_000_000, Runtime.getRuntime().availableProcessors());
+
+        Map<String, Supplier<Object>> queries = new LinkedHashMap<>();
+        queries.put("count late returns", () -> history.count(history::isReturnedLate));
+        queries.put("loans per author per month", () -> history.loansPerAuthorPerMonth(history.all()));
+        queries.put("users with 3+ late returns", () -> history.repeatedLateReturns(3, history.all()));
+        queries.put("mean loan per author", () -> history.meanLoanMillisByAuthor(history.all()));
+        String author = history.authorOf(0);
+        queries.put("one author's loans last year", () -> history.count(history.byAuthor(author)
+                .and(history.borrowedBetween(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(365), Long.MAX_VALUE))));
+
+        System.out.printf("%-30s %8s %10s %10s %9s%n", "query", "threads", "ms", "Mrows/s", "speedup");
+        for (Map.Entry<String, Supplier<Object>> query : queries.entrySet()) {
+            double baseline = 0;
+            for (int t : threads) {
+                ForkJoinPool pool = new ForkJoinPool(t);
+                history.pool = pool;
+                // Warm-up runs let the scan loop compile before the timed ones
+                for (int i = 0; i < 2; i++) query.getValue().get();
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < runs; i++) {
+                    long began = System.nanoTime();
+                    query.getValue().get();
+                    best = Math.min(best, System.nanoTime() - began);
+                }
+                pool.shutdown();
+                double ms = best / 1e6;
+                if (baseline == 0) baseline = ms;
+                System.out.printf("%-30s %8d %10.1f %10.1f %8.2fx%n", query.getKey(), t, ms, rows / ms / 1000, baseline / ms);
+            }
+        }
+    }
+
+    private static HistoryAnalytics generate(int rows, int books, int users, int authors, int years) {
+        String[] isbns = new String[books], userIds = new String[users];
+        Map<String, Book> catalog = new HashMap<>();
+        for (int i = 0; i < books; i++) {
+            isbns[i] = LibraryBenchmark.isbn(i);
+            catalog.put(isbns[i], new Book(isbns[i], "Title " + i, "Author " + (i % authors)));
+        }
+        for (int i = 0; i < users; i++) userIds[i] = LibraryBenchmark.userId(i);
+        long day = TimeUnit.DAYS.toMillis(1), now = System.currentTimeMillis(), first = now - years * 365L * day;
+        long loan = SimpleLibrary.DEFAULT_LOAN_MILLIS;
+        SplittableRandom random = new SplittableRandom(42);
+        HistoryAnalytics.Builder builder = new HistoryAnalytics.Builder();
+        for (int i = 0; i < rows; i++) {
+            // Borrow times rise with the row, as they do in a real history
+            long borrowed = first + (now - first) / rows * i;
+            int roll = random.nextInt(100);
+            long returned = roll < 2 ? HistoryAnalytics.ACTIVE
+                    : borrowed + (roll < 20 ? loan + random.nextLong(30 * day) : random.nextLong(loan));
+            builder.add(isbns[random.nextInt(books)], userIds[random.nextInt(users)], borrowed, borrowed + loan, returned);
+        }
+        return builder.build(catalog);
+    }
+}
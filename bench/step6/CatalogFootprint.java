@@ -0,0 +1,39 @@
+package step6;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+// Heap retained by the catalog and the cost of a full collection, on-heap map against the off-heap catalog.
+// Run each mode in its own JVM: java -Xmx4g step6.CatalogFootprint heap|offheap [books]
+public class CatalogFootprint {
+    public static void main(String[] args) {
+        boolean offHeap = args.length > 0 && args[0].equals("offheap");
+        int books = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        long before = usedHeap();
+        SimpleLibrary library = new SimpleLibrary(new MemoryStore(), SimpleLibrary.DEFAULT_CACHE_SIZE, false, offHeap);
+        for (int i = 0; i < books; i++) library.addBook(new Book(LibraryBenchmark.isbn(i), "Title " + i, "Author " + (i % 1000)));
+        long catalog = usedHeap() - before;
+
+        long pauses = 0, collections = 0;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            System.gc();
+            pauses += System.nanoTime() - start;
+            collections++;
+        }
+        long gcMillis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) gcMillis += gc.getCollectionTime();
+
+        System.out.printf("%s: %,d books, heap %,d MB, off-heap %,d MB, full GC %.1f ms (total GC time %d ms)%n",
+                offHeap ? "offheap" : "heap", library.books.size(), catalog >> 20,
+                offHeap ? ((OffHeapCatalog) library.books).offHeapBytes() >> 20 : 0,
+                pauses / collections / 1e6, gcMillis);
+        System.out.println(library.books.get(LibraryBenchmark.isbn(books - 1)));
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,164 @@
+package step6;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Drives due dates, overdue detection, fines and renewal through a hand-advanced clock on each backend, reopening the
+// durable ones to check that a renewal survives a restart. Prints every failed expectation and exits with status 1 if any.
+//   java step6.DueDateCheck backends=memory,file,journal
+public class DueDateCheck {
+    private static final long START = 1_700_000_000_000L;
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    // A clock that only moves when told to
+    public static class ManualClock extends Clock {
+        private volatile long millis;
+
+        public ManualClock(long millis) {
+            this.millis = millis;
+        }
+
+        public void advance(long delta) {
+            millis += delta;
+        }
+
+        public long millis() {
+            return millis;
+        }
+
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+    }
+
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) throws IOException {
+        String[] backends = {"memory", "file", "journal"};
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            switch (kv[0]) {
+                case "backends": backends = kv[1].split(","); break;
+                default: throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+        for (String backend : backends) {
+            Path dir = Files.createTempDirectory("due-check-");
+            try {
+                run(backend, dir);
+            } finally {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+                }
+            }
+        }
+        failures.forEach(System.out::println);
+        System.out.println(failures.isEmpty() ? "PASS" : "FAIL: " + failures.size() + " expectation(s) failed");
+        if (!failures.isEmpty()) System.exit(1);
+    }
+
+    private static void run(String backend, Path dir) {
+        ManualClock clock = new ManualClock(START);
+        SimpleLibrary library = open(backend, dir, clock);
+        List<String> reported = new CopyOnWriteArrayList<>(), renewed = new CopyOnWriteArrayList<>();
+        LibraryListener listener = new LibraryListener() {
+            public void loanOverdue(BorrowTransaction t) {
+                reported.add(t.bookIsbn);
+            }
+
+            public void loanRenewed(BorrowTransaction t) {
+                renewed.add(t.bookIsbn);
+            }
+        };
+        library.addListener(listener);
+        for (String isbn : new String[]{"A", "B"}) library.addBook(new Book(isbn, "Title " + isbn, "Author"));
+        for (String userId : new String[]{"U1", "U2", "U3"}) library.addUser(new User(userId, "User " + userId));
+        long loan = library.loanMillis;
+
+        library.borrowBook("A", "U1");
+        library.borrowBook("B", "U2");
+        BorrowTransaction a = loan(library, "U1", "A"), b = loan(library, "U2", "B");
+        expect(backend, "due date is one loan period after the borrow", a.dueDate.getTime() == START + loan);
+
+        clock.advance(loan - 1);
+        expect(backend, "nothing overdue a millisecond before the due time", library.overdueLoans().isEmpty());
+        expect(backend, "no fine before the due time", library.getFineCents(b) == 0);
+        expect(backend, "a loan that is not yet due renews", library.renewLoan("A", "U1"));
+        expect(backend, "renewal moves the due date a loan period past now", a.dueDate.getTime() == clock.millis() + loan);
+        expect(backend, "renewal is announced", renewed.equals(List.of("A")));
+
+        clock.advance(1);
+        expect(backend, "the unrenewed loan is overdue at its due time", isbns(library.overdueLoans()).equals(List.of("B")));
+        expect(backend, "the overdue loan is reported once", reported.equals(List.of("B")));
+        clock.advance(DAY);
+        expect(backend, "one day late costs one day's fine", library.getFineCents(b) == library.finePerDayCents);
+        clock.advance(1);
+        expect(backend, "a started day counts as a whole day", library.getFineCents(b) == 2 * library.finePerDayCents);
+        library.checkDueLoans();
+        expect(backend, "a later check does not report the loan again", reported.equals(List.of("B")));
+        expect(backend, "an overdue loan does not renew", !library.renewLoan("B", "U2"));
+
+        expect(backend, "a hold can be placed on the lent book", library.placeHold("A", "U3"));
+        expect(backend, "a loan someone is waiting for does not renew", !library.renewLoan("A", "U1"));
+        library.cancelHold("A", "U3");
+
+        expect(backend, "the overdue book comes back", library.returnBook("B", "U2"));
+        expect(backend, "a returned loan leaves the overdue list", library.overdueLoans().isEmpty());
+        long renewedDue = a.dueDate.getTime();
+
+        if (!backend.equals("memory")) {
+            library.close();
+            library = open(backend, dir, clock);
+            a = loan(library, "U1", "A");
+            expect(backend, "the renewed due date survives a restart", a != null && a.dueDate.getTime() == renewedDue);
+            if (a == null) return;
+        }
+        clock.advance(renewedDue - clock.millis() - 1);
+        expect(backend, "the renewed loan is not overdue before its new due time", library.overdueLoans().isEmpty());
+        clock.advance(1);
+        expect(backend, "the renewed loan is overdue at its new due time", isbns(library.overdueLoans()).equals(List.of("A")));
+        library.close();
+    }
+
+    private static SimpleLibrary open(String backend, Path dir, Clock clock) {
+        switch (backend) {
+            case "memory": return new SimpleLibrary(new MemoryStore(), clock);
+            case "file": return new SimpleLibrary(new FileStore(dir.resolve("library.log").toString()), clock);
+            case "journal": return new SimpleLibrary(new JournalStore(dir.toString(), 1 << 20, 0), clock);
+            default: throw new IllegalArgumentException("Unknown backend " + backend);
+        }
+    }
+
+    private static BorrowTransaction loan(SimpleLibrary library, String userId, String isbn) {
+        for (BorrowTransaction t : library.getActiveLoans(userId)) {
+            if (t.bookIsbn.equals(isbn)) return t;
+        }
+        return null;
+    }
+
+    private static List<String> isbns(List<BorrowTransaction> loans) {
+        List<String> isbns = new ArrayList<>();
+        for (BorrowTransaction t : loans) isbns.add(t.bookIsbn);
+        return isbns;
+    }
+
+    private static void expect(String backend, String what, boolean ok) {
+        if (!ok) failures.add(backend + ": " + what);
+    }
+}
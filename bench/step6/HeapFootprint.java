@@ -0,0 +1,42 @@
+package step6;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+// Retained heap of the transaction history, object mode against compact mode.
+// Run each mode in its own JVM: java -Xmx4g step6.HeapFootprint objects|compact [transactions]
+public class HeapFootprint {
+    public static final int BOOKS = 100_000;
+    public static final int USERS = 10_000;
+
+    public static void main(String[] args) {
+        boolean compact = args.length > 0 && args[0].equals("compact");
+        int transactions = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+
+        SimpleLibrary library = new SimpleLibrary(new MemoryStore(), SimpleLibrary.DEFAULT_CACHE_SIZE, compact);
+        for (int i = 0; i < BOOKS; i++) library.addBook(new Book(LibraryBenchmark.isbn(i), "Title " + i, "Author " + (i % 1000)));
+        for (int i = 0; i < USERS; i++) library.addUser(new User(LibraryBenchmark.userId(i), "User " + i));
+        long before = usedHeap();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < transactions; i++) {
+            String isbn = LibraryBenchmark.isbn(i % BOOKS), userId = LibraryBenchmark.userId(i % USERS);
+            library.borrowBook(isbn, userId);
+            library.returnBook(isbn, userId);
+        }
+        long seconds = (System.nanoTime() - start) / 1_000_000_000;
+        long after = usedHeap();
+
+        System.out.printf("%s: %,d transactions in %d s, history retains %,d MB (%d bytes per transaction)%n",
+                compact ? "compact" : "objects", library.getTransactionCount(), seconds,
+                (after - before) >> 20, (after - before) / Math.max(1, library.getTransactionCount()));
+        // Keeps the library reachable until after the measurement
+        System.out.println(library.getTransactionHistory(transactions - 1, 1));
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
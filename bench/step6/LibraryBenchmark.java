@@ -0,0 +1,176 @@
+package step6;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.swing.table.DefaultTableModel;
+import java.sql.*;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LibraryBenchmark {
+    public static final String H2_URL = "jdbc:h2:mem:library_bench;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    public static final int USER_COUNT = 1000;
+
+    @State(Scope.Benchmark)
+    public static class LibraryState {
+        @Param({"1000", "100000", "1000000"})
+        public int catalogSize;
+
+        @Param({"0", "100000"})
+        public int historySize;
+
+        @Param({"memory", "h2"})
+        public String backend;
+
+        public SimpleLibrary library;
+        public int nextBook;
+        public int nextBorrow;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            library = newLibrary();
+            for (int i = 0; i < catalogSize; i++) library.addBook(new Book(isbn(i), "Title " + i, "Author " + (i % 5000)));
+            for (int i = 0; i < USER_COUNT; i++) library.addUser(new User(userId(i), "User " + i));
+            for (int i = 0; i < historySize; i++) {
+                library.borrowBook(isbn(i % catalogSize), userId(i % USER_COUNT));
+                library.returnBook(isbn(i % catalogSize), userId(i % USER_COUNT));
+            }
+            nextBook = catalogSize;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            library.close();
+            if (backend.equals("h2")) {
+                try (Connection connection = DriverManager.getConnection(H2_URL, "sa", "");
+                     Statement stmt = connection.createStatement()) {
+                    stmt.execute("DROP ALL OBJECTS");
+                }
+            }
+        }
+
+        public SimpleLibrary newLibrary() {
+            try {
+                return new SimpleLibrary(backend.equals("h2") ? new JdbcStore(H2_URL, "sa", "", 4) : new MemoryStore());
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Walks the catalog so each borrow hits a book that is currently available
+        public String nextBorrowIsbn() {
+            return isbn(nextBorrow++ % catalogSize);
+        }
+
+        public String nextBorrowUser() {
+            return userId(nextBorrow % USER_COUNT);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class BorrowedState {
+        public String isbn, userId;
+
+        @Setup(Level.Invocation)
+        public void borrow(LibraryState state) {
+            isbn = state.nextBorrowIsbn();
+            userId = state.nextBorrowUser();
+            state.library.borrowBook(isbn, userId);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AvailableState {
+        public String isbn, userId;
+        private LibraryState state;
+
+        @Setup(Level.Invocation)
+        public void pick(LibraryState state) {
+            this.state = state;
+            isbn = state.nextBorrowIsbn();
+            userId = state.nextBorrowUser();
+        }
+
+        @TearDown(Level.Invocation)
+        public void giveBack() {
+            state.library.returnBook(isbn, userId);
+        }
+    }
+
+    @Benchmark
+    public void addBook(LibraryState state) {
+        int i = state.nextBook++;
+        state.library.addBook(new Book(isbn(i), "Title " + i, "Author " + (i % 5000)));
+    }
+
+    @Benchmark
+    public boolean borrowBook(LibraryState state, AvailableState available) {
+        return state.library.borrowBook(available.isbn, available.userId);
+    }
+
+    @Benchmark
+    public boolean returnBook(LibraryState state, BorrowedState borrowed) {
+        return state.library.returnBook(borrowed.isbn, borrowed.userId);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public SimpleLibrary loadDataFromDatabase(LibraryState state) {
+        SimpleLibrary loaded = state.newLibrary();
+        loaded.close();
+        return loaded;
+    }
+
+    @Benchmark
+    public List<Book> search(LibraryState state) {
+        // Looks up a scattered existing title rather than walking 0, 1, 2... which are the broadest prefixes
+        return state.library.search("title " + (int) ((state.nextBook++ * 7919L) % state.catalogSize), 10);
+    }
+
+    // Mirrors LibraryGUI.refreshTables, which rebuilds every row of every table
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void refreshTables(LibraryState state, Blackhole blackhole) {
+        SimpleLibrary library = state.library;
+        DefaultTableModel booksModel = new DefaultTableModel(new String[]{"ISBN", "Title", "Author", "Status"}, 0);
+        library.books.values().forEach(book ->
+                booksModel.addRow(new Object[]{book.isbn, book.title, book.author, book.getStatus()}));
+
+        DefaultTableModel usersModel = new DefaultTableModel(new String[]{"User ID", "Name", "Books Borrowed"}, 0);
+        library.users.values().forEach(user ->
+                usersModel.addRow(new Object[]{user.userId, user.name, user.borrowedBooks.size() + "/" + User.MAX_BOOKS_LIMIT}));
+
+        DefaultTableModel transactionsModel = new DefaultTableModel(new String[]{"ID", "Book", "User", "Status"}, 0);
+        library.transactions.values().forEach(t ->
+                transactionsModel.addRow(new Object[]{t.transactionId, t.bookIsbn, t.userId, t.isReturned ? "Returned" : "Active"}));
+
+        blackhole.consume(booksModel);
+        blackhole.consume(usersModel);
+        blackhole.consume(transactionsModel);
+    }
+
+    public static String isbn(int i) {
+        return "ISBN-" + i;
+    }
+
+    public static String userId(int i) {
+        return "U" + i;
+    }
+
+    // Pass a benchmark name regex to narrow the run, e.g. "returnBook"
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LibraryBenchmark.class.getSimpleName() + (args.length > 0 ? "." + args[0] : ""))
+                .build()).run();
+    }
+}
@@ -0,0 +1,342 @@
+package step6;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Drives a library with a synthetic or recorded mix of addBook/addUser/borrowBook/returnBook and reports
+// throughput and p50/p99/p999 latency per operation. Borrows pick ISBNs by Zipfian popularity; returns give back
+// the oldest outstanding loan. Closed loop runs `threads` workers back to back; open loop issues `rate` operations
+// per second whatever the latency, and times each from when it was due, so a stall shows up in the percentiles.
+// A replay seeds the same books and users as the run that recorded it, so pass the same books= and users=.
+//   java step6.LoadGenerator backend=memory|h2 mode=closed|open threads=64 virtual=true rate=20000 seconds=30
+//        books=100000 users=10000 zipf=0.99 mix=2,1,50,47 record=ops.log replay=ops.log speed=1.0
+public class LoadGenerator {
+    public enum Op { ADD_BOOK, ADD_USER, BORROW, RETURN }
+
+    public String backend = "memory";
+    public boolean openLoop;
+    public int threads = 16;
+    public boolean virtualThreads = true;
+    public int rate = 10_000;
+    public int seconds = 10;
+    public int books = 100_000;
+    public int users = 10_000;
+    public double zipfExponent = 0.99;
+    // Percent of addBook, addUser, borrowBook and returnBook
+    public int[] mix = {2, 1, 50, 47};
+    public String recordPath;
+    public String replayPath;
+    public double replaySpeed = 1.0;
+    // Open-loop operations still running beyond this are dropped and counted instead of queueing without bound
+    public int maxOutstanding = 100_000;
+
+    private SimpleLibrary library;
+    private ZipfSampler popularity;
+    private final ConcurrentLinkedQueue<String[]> loans = new ConcurrentLinkedQueue<>();
+    private final AtomicLong nextBook = new AtomicLong(), nextUser = new AtomicLong();
+    private final Map<Op, LatencyHistogram> latency = new EnumMap<>(Op.class);
+    private final Map<Op, AtomicLong> rejected = new EnumMap<>(Op.class);
+    private final AtomicLong dropped = new AtomicLong();
+    private PrintWriter recorder;
+    private final Object[] recordLocks = new Object[1024];
+    private long startNanos;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) generator.set(arg);
+        generator.run();
+    }
+
+    public void set(String arg) {
+        int eq = arg.indexOf('=');
+        if (eq < 0) throw new IllegalArgumentException("Expected key=value: " + arg);
+        String key = arg.substring(0, eq), value = arg.substring(eq + 1);
+        switch (key) {
+            case "backend": backend = value; break;
+            case "mode": openLoop = value.equals("open"); break;
+            case "threads": threads = Integer.parseInt(value); break;
+            case "virtual": virtualThreads = Boolean.parseBoolean(value); break;
+            case "rate": rate = Integer.parseInt(value); break;
+            case "seconds": seconds = Integer.parseInt(value); break;
+            case "books": books = Integer.parseInt(value); break;
+            case "users": users = Integer.parseInt(value); break;
+            case "zipf": zipfExponent = Double.parseDouble(value); break;
+            case "mix": mix = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray(); break;
+            case "record": recordPath = value; break;
+            case "replay": replayPath = value; break;
+            case "speed": replaySpeed = Double.parseDouble(value); break;
+            case "maxOutstanding": maxOutstanding = Integer.parseInt(value); break;
+            default: throw new IllegalArgumentException("Unknown option " + key);
+        }
+    }
+
+    public void run() throws Exception {
+        for (Op op : Op.values()) {
+            latency.put(op, new LatencyHistogram());
+            rejected.put(op, new AtomicLong());
+        }
+        library = newLibrary();
+        try {
+            seed();
+            if (recordPath != null) {
+                recorder = new PrintWriter(Files.newBufferedWriter(Paths.get(recordPath), StandardCharsets.UTF_8));
+                for (int i = 0; i < recordLocks.length; i++) recordLocks[i] = new Object();
+            }
+            startNanos = System.nanoTime();
+            if (replayPath != null) replay();
+            else if (openLoop) openLoop();
+            else closedLoop();
+            long elapsed = System.nanoTime() - startNanos;
+            if (recorder != null) recorder.close();
+            library.flush();
+            report(elapsed);
+        } finally {
+            library.close();
+        }
+    }
+
+    private SimpleLibrary newLibrary() throws SQLException {
+        switch (backend) {
+            case "memory":
+                return new SimpleLibrary(new MemoryStore());
+            case "h2":
+                return new SimpleLibrary(new JdbcStore("jdbc:h2:mem:load_" + System.nanoTime() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "", 8));
+            default:
+                throw new IllegalArgumentException("Unknown backend " + backend);
+        }
+    }
+
+    private void seed() {
+        long start = System.nanoTime();
+        for (int i = 0; i < books; i++) library.addBook(new Book(LibraryBenchmark.isbn(i), "Title " + i, "Author " + (i % 5000), 1 + i % 3));
+        for (int i = 0; i < users; i++) library.addUser(new User(LibraryBenchmark.userId(i), "User " + i));
+        nextBook.set(books);
+        nextUser.set(users);
+        popularity = new ZipfSampler(books, zipfExponent);
+        System.out.printf("Seeded %,d books and %,d users on %s in %d ms%n", books, users, backend, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private ExecutorService workers() {
+        return virtualThreads ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newFixedThreadPool(threads);
+    }
+
+    private void closedLoop() throws InterruptedException {
+        long deadline = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = workers();
+        for (int t = 0; t < threads; t++) {
+            pool.execute(() -> {
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    execute(nextOp(), start);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+    }
+
+    // One dispatcher paces the arrivals; each operation runs on its own task so a slow one never delays the next
+    private void openLoop() throws InterruptedException {
+        long interval = 1_000_000_000L / rate, total = (long) rate * seconds;
+        ExecutorService pool = workers();
+        Semaphore outstanding = new Semaphore(maxOutstanding);
+        for (long i = 0; i < total; i++) {
+            long due = startNanos + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+            if (!outstanding.tryAcquire()) {
+                dropped.incrementAndGet();
+                continue;
+            }
+            String[] op = nextOp();
+            pool.execute(() -> {
+                try {
+                    execute(op, due);
+                } finally {
+                    outstanding.release();
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(60, TimeUnit.SECONDS);
+    }
+
+    // Closed loop replays as fast as the workers go; open loop keeps the recorded timing, scaled by speed
+    private void replay() throws IOException, InterruptedException {
+        ExecutorService pool = workers();
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(replayPath), StandardCharsets.UTF_8)) {
+            if (openLoop) {
+                Semaphore outstanding = new Semaphore(maxOutstanding);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    long due = startNanos + (long) (Long.parseLong(f[0]) / replaySpeed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait);
+                    if (!outstanding.tryAcquire()) {
+                        dropped.incrementAndGet();
+                        continue;
+                    }
+                    String[] op = Arrays.copyOfRange(f, 1, f.length);
+                    pool.execute(() -> {
+                        try {
+                            execute(op, due);
+                        } finally {
+                            outstanding.release();
+                        }
+                    });
+                }
+            } else {
+                // Each operation runs once the previous recorded operation on its user and on its book has, so a return
+                // never overtakes its borrow and a borrow never overtakes the return that freed its copy. Independent
+                // operations run side by side, at most `threads` of them in flight. Logs recorded before operations
+                // were logged under their keys' stripes can still replay some operations out of order.
+                Semaphore inFlight = new Semaphore(threads);
+                Map<String, CompletableFuture<Void>> last = new HashMap<>();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t", -1);
+                    String[] op = Arrays.copyOfRange(f, 1, f.length);
+                    String[] keys = keys(op);
+                    List<CompletableFuture<Void>> before = new ArrayList<>();
+                    for (String key : keys) {
+                        CompletableFuture<Void> previous = last.get(key);
+                        if (previous != null) before.add(previous);
+                    }
+                    inFlight.acquire();
+                    CompletableFuture<Void> done = CompletableFuture.allOf(before.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+                        try {
+                            execute(op, System.nanoTime());
+                        } catch (RuntimeException e) {
+                            // Later operations on the same user or book still run
+                            System.err.println("Replayed " + String.join(" ", op) + " failed: " + e);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }, pool);
+                    for (String key : keys) last.put(key, done);
+                }
+                // Every operation finishes before the last one on each of its keys
+                CompletableFuture.allOf(last.values().toArray(new CompletableFuture<?>[0])).join();
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.HOURS);
+        }
+    }
+
+    // [op, args...] drawn from the mix; a return with no loan outstanding becomes a borrow
+    private String[] nextOp() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int roll = random.nextInt(Arrays.stream(mix).sum()), op = 0;
+        while (roll >= mix[op]) roll -= mix[op++];
+        switch (Op.values()[op]) {
+            case ADD_BOOK:
+                long b = nextBook.getAndIncrement();
+                return new String[]{Op.ADD_BOOK.name(), LibraryBenchmark.isbn((int) b), "Title " + b, "Author " + (b % 5000)};
+            case ADD_USER:
+                long u = nextUser.getAndIncrement();
+                return new String[]{Op.ADD_USER.name(), LibraryBenchmark.userId((int) u), "User " + u};
+            case RETURN:
+                String[] loan = loans.poll();
+                if (loan == null) return borrowOp(random);
+                return new String[]{Op.RETURN.name(), loan[0], loan[1]};
+            default:
+                return borrowOp(random);
+        }
+    }
+
+    private String[] borrowOp(ThreadLocalRandom random) {
+        return new String[]{Op.BORROW.name(), LibraryBenchmark.isbn(popularity.next(random)),
+                LibraryBenchmark.userId(random.nextInt((int) Math.min(Integer.MAX_VALUE, nextUser.get())))};
+    }
+
+    // While recording, an operation runs and is logged under the stripes of its user and book, so the log has the
+    // operations on each user and each book in the order they took effect, failed ones included, and replay can keep it
+    private void execute(String[] op, long start) {
+        if (recorder == null) {
+            perform(op, start);
+            return;
+        }
+        String[] keys = keys(op);
+        int a = Math.floorMod(keys[0].hashCode(), recordLocks.length), b = Math.floorMod(keys[keys.length - 1].hashCode(), recordLocks.length);
+        synchronized (recordLocks[Math.min(a, b)]) {
+            synchronized (recordLocks[Math.max(a, b)]) {
+                perform(op, start);
+                String line = (start - startNanos) + "\t" + String.join("\t", op);
+                synchronized (recorder) {
+                    recorder.println(line);
+                }
+            }
+        }
+    }
+
+    private void perform(String[] op, long start) {
+        Op type = Op.valueOf(op[0]);
+        boolean ok = true;
+        switch (type) {
+            case ADD_BOOK: library.addBook(new Book(op[1], op[2], op[3])); break;
+            case ADD_USER: library.addUser(new User(op[1], op[2])); break;
+            case BORROW:
+                ok = library.borrowBook(op[1], op[2]);
+                if (ok) loans.add(new String[]{op[1], op[2]});
+                break;
+            case RETURN: ok = library.returnBook(op[1], op[2]); break;
+        }
+        latency.get(type).record(System.nanoTime() - start);
+        if (!ok) rejected.get(type).incrementAndGet();
+    }
+
+    // The user and book an operation depends on
+    private static String[] keys(String[] op) {
+        switch (Op.valueOf(op[0])) {
+            case ADD_BOOK: return new String[]{"book " + op[1]};
+            case ADD_USER: return new String[]{"user " + op[1]};
+            default: return new String[]{"book " + op[1], "user " + op[2]};
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        long total = 0;
+        System.out.printf("%s, %s loop, %d %s threads%s%n", backend, openLoop ? "open" : "closed", threads, virtualThreads ? "virtual" : "platform",
+                replayPath != null ? ", replaying " + replayPath : openLoop ? ", target " + rate + " ops/s" : "");
+        System.out.printf("%-10s %12s %12s %10s %10s %10s %10s%n", "operation", "count", "ops/s", "rejected", "p50 us", "p99 us", "p999 us");
+        for (Op op : Op.values()) {
+            LatencyHistogram h = latency.get(op);
+            long[] p = h.percentilesNanos(0.5, 0.99, 0.999);
+            total += h.count();
+            System.out.printf("%-10s %,12d %,12.0f %,10d %10.1f %10.1f %10.1f%n", op, h.count(), h.count() / seconds,
+                    rejected.get(op).get(), p[0] / 1e3, p[1] / 1e3, p[2] / 1e3);
+        }
+        System.out.printf("total      %,12d %,12.0f in %.1f s%s%n", total, total / seconds, seconds,
+                dropped.get() > 0 ? String.format(", %,d dropped over maxOutstanding", dropped.get()) : "");
+    }
+
+    // Rank r (0 = most popular) is drawn with probability proportional to 1 / (r + 1)^s by binary search over the CDF;
+    // ranks are spread over the catalog by a fixed permutation so popular books are not all the oldest ones
+    static class ZipfSampler {
+        private final double[] cdf;
+        private final int n;
+
+        ZipfSampler(int n, double exponent) {
+            this.n = n;
+            cdf = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) cdf[i] = sum += 1 / Math.pow(i + 1, exponent);
+            for (int i = 0; i < n; i++) cdf[i] /= sum;
+        }
+
+        int next(Random random) {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble());
+            if (rank < 0) rank = Math.min(-rank - 1, n - 1);
+            return (int) ((rank * 2_654_435_761L) % n);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package step6;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of instrumentation on a borrow/return cycle against the memory store, metrics disabled against enabled
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    public static final int BOOKS = 10_000;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    public SimpleLibrary library;
+    public int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        library = new SimpleLibrary(new MemoryStore(), SimpleLibrary.DEFAULT_CACHE_SIZE, true);
+        if (metrics) library.enableMetrics();
+        for (int i = 0; i < BOOKS; i++) library.addBook(new Book(LibraryBenchmark.isbn(i), "Title " + i, "Author " + i));
+        library.addUser(new User("U0", "User"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        library.close();
+    }
+
+    @Benchmark
+    public boolean borrowAndReturn() {
+        String isbn = LibraryBenchmark.isbn(next++ % BOOKS);
+        library.borrowBook(isbn, "U0");
+        return library.returnBook(isbn, "U0");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MetricsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
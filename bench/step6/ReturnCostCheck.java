@@ -0,0 +1,112 @@
+package step6;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+// Checks that borrow/return cost stays flat as history grows: grows one library's history through each size in turn,
+// times the median of several rounds of borrow/return pairs at each, and exits with status 1 if the slowest size costs
+// more than `tolerance` times the fastest. A return only looks at the user's own active loans, so history size must not matter.
+// Collection pauses are taken out of each round and reported on their own: a heap that starts small and grows collects
+// more often early on, which made smaller histories look slower. Shorter rounds or fewer of them mostly measure
+// compilation and collections, so pairs and rounds have minimums; a fixed heap (-Xms equal to -Xmx) steadies it further.
+//   java step6.ReturnCostCheck sizes=0,10000,100000,1000000 pairs=50000 rounds=5 tolerance=3 backend=memory|compact
+public class ReturnCostCheck {
+    public static final int BOOKS = 10_000;
+    public static final int USERS = 1000;
+    public static final int MIN_PAIRS = 20_000, MIN_ROUNDS = 5;
+    // The warm-up goes on for at least this long
+    public static final long WARM_UP_MILLIS = 3000;
+
+    public static void main(String[] args) {
+        int[] sizes = {0, 10_000, 100_000, 1_000_000};
+        int pairs = 50_000, rounds = 5;
+        double tolerance = 3;
+        boolean compact = false;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            switch (kv[0]) {
+                case "sizes": sizes = Arrays.stream(kv[1].split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                case "pairs": pairs = Integer.parseInt(kv[1]); break;
+                case "rounds": rounds = Integer.parseInt(kv[1]); break;
+                case "tolerance": tolerance = Double.parseDouble(kv[1]); break;
+                case "backend": compact = kv[1].equals("compact"); break;
+                default: throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+
+        if (pairs < MIN_PAIRS || rounds < MIN_ROUNDS) {
+            throw new IllegalArgumentException("Needs pairs >= " + MIN_PAIRS + " and rounds >= " + MIN_ROUNDS + " for a stable median");
+        }
+
+        // Warm-up on throwaway libraries, so the first size is not charged for compilation. Each starts empty and stays
+        // small: warming one ever-growing library compiled only the large-history paths, and the measured library's
+        // first rounds then went back to the compiler.
+        long warmUpEnd = System.nanoTime() + WARM_UP_MILLIS * 1_000_000;
+        for (int libraries = 0; libraries < 3 || System.nanoTime() < warmUpEnd; libraries++) {
+            SimpleLibrary warmUp = newLibrary(compact);
+            for (int r = 0; r < 5; r++) borrowAndReturn(warmUp, r * pairs, pairs);
+            warmUp.close();
+        }
+
+        SimpleLibrary library = newLibrary(compact);
+        try {
+            int done = 0;
+            double fastest = Double.MAX_VALUE, slowest = 0;
+            System.out.printf("%12s %16s %16s%n", "history", "ns per pair", "gc ns per pair");
+            for (int size : sizes) {
+                if (size > done) {
+                    borrowAndReturn(library, done, size - done);
+                    done = size;
+                }
+                // An untimed round first, so the collector has settled on the grown heap
+                borrowAndReturn(library, done, pairs);
+                done += pairs;
+                long history = library.getTransactionCount();
+                // The median round leaves out other one-off pauses on either side
+                double[] perRound = new double[rounds], gcPerRound = new double[rounds];
+                for (int r = 0; r < rounds; r++) {
+                    long gcStart = gcMillis(), start = System.nanoTime();
+                    borrowAndReturn(library, done, pairs);
+                    long gcNanos = (gcMillis() - gcStart) * 1_000_000;
+                    perRound[r] = Math.max(0, System.nanoTime() - start - gcNanos) / (double) pairs;
+                    gcPerRound[r] = gcNanos / (double) pairs;
+                    done += pairs;
+                }
+                Arrays.sort(perRound);
+                Arrays.sort(gcPerRound);
+                double nanos = perRound[rounds / 2];
+                fastest = Math.min(fastest, nanos);
+                slowest = Math.max(slowest, nanos);
+                System.out.printf("%,12d %,16.0f %,16.0f%n", history, nanos, gcPerRound[rounds / 2]);
+            }
+            boolean flat = slowest <= fastest * tolerance;
+            System.out.printf("%s: slowest size costs %.2fx the fastest (limit %.1fx)%n", flat ? "PASS" : "FAIL", slowest / fastest, tolerance);
+            if (!flat) System.exit(1);
+        } finally {
+            library.close();
+        }
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += gc.getCollectionTime();
+        return millis;
+    }
+
+    private static SimpleLibrary newLibrary(boolean compact) {
+        SimpleLibrary library = new SimpleLibrary(new MemoryStore(), SimpleLibrary.DEFAULT_CACHE_SIZE, compact);
+        for (int i = 0; i < BOOKS; i++) library.addBook(new Book(LibraryBenchmark.isbn(i), "Title " + i, "Author " + (i % 1000)));
+        for (int i = 0; i < USERS; i++) library.addUser(new User(LibraryBenchmark.userId(i), "User " + i));
+        return library;
+    }
+
+    private static void borrowAndReturn(SimpleLibrary library, int from, int count) {
+        for (int i = from; i < from + count; i++) {
+            String isbn = LibraryBenchmark.isbn(i % BOOKS), userId = LibraryBenchmark.userId(i % USERS);
+            if (!library.borrowBook(isbn, userId) || !library.returnBook(isbn, userId)) {
+                throw new IllegalStateException("Borrow/return of " + isbn + " by " + userId + " failed");
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package step6;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Borrow/return throughput of ShardedLibrary on memory stores as the shard count grows. Each client keeps `window`
+// async borrows or returns in flight, so the shard loops, not the clients, set the pace; users borrow uniformly
+// across the catalog, so every shard gets an even share.
+//   java step6.ShardScaling shards=1,2,4,8 clients=8 window=64 seconds=10 books=100000 users=10000
+public class ShardScaling {
+    public static void main(String[] args) throws Exception {
+        int[] shardCounts = {1, 2, 4, 8};
+        int clients = 8, window = 64, seconds = 10, books = 100_000, users = 10_000;
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            switch (kv[0]) {
+                case "shards": shardCounts = Arrays.stream(kv[1].split(",")).mapToInt(Integer::parseInt).toArray(); break;
+                case "clients": clients = Integer.parseInt(kv[1]); break;
+                case "window": window = Integer.parseInt(kv[1]); break;
+                case "seconds": seconds = Integer.parseInt(kv[1]); break;
+                case "books": books = Integer.parseInt(kv[1]); break;
+                case "users": users = Integer.parseInt(kv[1]); break;
+                default: throw new IllegalArgumentException("Unknown option " + kv[0]);
+            }
+        }
+        System.out.printf("%d cores, %d clients with %d operations in flight each%n", Runtime.getRuntime().availableProcessors(), clients, window);
+        System.out.printf("%6s %14s %10s%n", "shards", "ops/s", "speedup");
+        double baseline = 0;
+        for (int shardCount : shardCounts) {
+            double opsPerSecond = run(shardCount, clients, window, seconds, books, users);
+            if (baseline == 0) baseline = opsPerSecond;
+            System.out.printf("%6d %,14.0f %9.2fx%n", shardCount, opsPerSecond, opsPerSecond / baseline);
+        }
+    }
+
+    private static double run(int shardCount, int clients, int window, int seconds, int books, int users) throws Exception {
+        ShardedLibrary library = new ShardedLibrary(shardCount, i -> new MemoryStore());
+        try {
+            for (int i = 0; i < books; i++) library.addBookAsync(new Book(LibraryBenchmark.isbn(i), "Title " + i, "Author " + (i % 5000), 1 + i % 3));
+            for (int i = 0; i < users; i++) library.addUser(new User(LibraryBenchmark.userId(i), "User " + i));
+            AtomicLong completed = new AtomicLong();
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                int client = c;
+                pool.execute(() -> {
+                    Semaphore inFlight = new Semaphore(window);
+                    // Each client owns its users, so a return always matches an earlier successful borrow
+                    ArrayDeque<String[]> loans = new ArrayDeque<>();
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        inFlight.acquireUninterruptibly();
+                        CompletableFuture<Boolean> op;
+                        String[] loan;
+                        synchronized (loans) {
+                            loan = loans.size() > window && random.nextBoolean() ? loans.poll() : null;
+                        }
+                        if (loan != null) {
+                            op = library.returnBookAsync(loan[0], loan[1]);
+                        } else {
+                            String[] next = {LibraryBenchmark.isbn(random.nextInt(books)),
+                                    LibraryBenchmark.userId(client + clients * random.nextInt(users / clients))};
+                            op = library.borrowBookAsync(next[0], next[1]);
+                            op.thenAccept(borrowed -> {
+                                if (borrowed) synchronized (loans) {
+                                    loans.add(next);
+                                }
+                            });
+                        }
+                        op.whenComplete((ok, error) -> {
+                            completed.incrementAndGet();
+                            inFlight.release();
+                        });
+                    }
+                    inFlight.acquireUninterruptibly(window);
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(seconds + 60L, TimeUnit.SECONDS);
+            return completed.get() * 1e9 / (System.nanoTime() - start);
+        } finally {
+            library.close();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package step6;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.*;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Compares the store's return update through the LibraryDao statement cache with preparing a new statement per call
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StatementCacheBenchmark {
+    public static final String H2_URL = "jdbc:h2:mem:statement_bench;MODE=MySQL;DB_CLOSE_DELAY=-1";
+
+    @Param({"1000"})
+    public int catalogSize;
+
+    public Connection connection;
+    public LibraryDao dao;
+    public String[] transactionIds;
+    public int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        SimpleLibrary library = new SimpleLibrary(new JdbcStore(H2_URL, "sa", "", 1));
+        for (int i = 0; i < catalogSize; i++) {
+            library.addBook(new Book(LibraryBenchmark.isbn(i), "Title " + i, "Author " + i));
+            library.addUser(new User(LibraryBenchmark.userId(i), "User " + i));
+            library.borrowBook(LibraryBenchmark.isbn(i), LibraryBenchmark.userId(i));
+        }
+        List<BorrowTransaction> loans = library.getTransactionHistory(0, catalogSize);
+        transactionIds = loans.stream().map(t -> t.transactionId).toArray(String[]::new);
+        library.close();
+        connection = DriverManager.getConnection(H2_URL, "sa", "");
+        dao = new LibraryDao(connection);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        dao.close();
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("DROP ALL OBJECTS");
+        }
+        connection.close();
+    }
+
+    @Benchmark
+    public int cachedStatement() throws SQLException {
+        Date returned = new Date();
+        return dao.update(LibraryDao.UPDATE_TRANSACTION_RETURNED, returned.toString(), returned.getTime(), transactionIds[next++ % transactionIds.length]);
+    }
+
+    @Benchmark
+    public int preparePerCall() throws SQLException {
+        Date returned = new Date();
+        try (PreparedStatement stmt = connection.prepareStatement(LibraryDao.UPDATE_TRANSACTION_RETURNED)) {
+            stmt.setString(1, returned.toString());
+            stmt.setLong(2, returned.getTime());
+            stmt.setString(3, transactionIds[next++ % transactionIds.length]);
+            return stmt.executeUpdate();
+        }
+    }
+}
@@ -1,20 +1,64 @@
 package step6;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Book {
     public final String isbn;
     public final String title;
     public final String author;
-    public BookStatus status;
+    public final int copies;
+    // Copies on the shelf; borrowing and returning only move this counter
+    public final AtomicInteger availableCopies;
+    // Shelf count of a book replaced in the catalog by a re-added one
+    private static final int RETIRED = Integer.MIN_VALUE;
 
     public Book(String isbn, String title, String author) {
+        this(isbn, title, author, 1);
+    }
+
+    public Book(String isbn, String title, String author, int copies) {
+        if (copies < 1) throw new IllegalArgumentException("A book needs at least one copy");
         this.isbn = isbn;
         this.title = title;
         this.author = author;
-        this.status = BookStatus.AVAILABLE;
+        this.copies = copies;
+        this.availableCopies = new AtomicInteger(copies);
     }
 
     public boolean isAvailable() {
-        return status == BookStatus.AVAILABLE;
+        return availableCopies.get() > 0;
+    }
+
+    public BookStatus getStatus() {
+        return isAvailable() ? BookStatus.AVAILABLE : BookStatus.BORROWED;
+    }
+
+    // Takes one copy off the shelf; false when none is left
+    public boolean checkOut() {
+        while (true) {
+            int available = availableCopies.get();
+            if (available <= 0) return false;
+            if (availableCopies.compareAndSet(available, available - 1)) return true;
+        }
+    }
+
+    // False when the book was retired, so the copy belongs on its replacement's shelf
+    public boolean checkIn() {
+        while (true) {
+            int available = availableCopies.get();
+            if (available == RETIRED) return false;
+            if (available >= copies) return true;
+            if (availableCopies.compareAndSet(available, available + 1)) return true;
+        }
+    }
+
+    // Empties the shelf for good and returns the copies that were on it; later checkOuts and checkIns fail
+    public int retire() {
+        return availableCopies.getAndSet(RETIRED);
+    }
+
+    public boolean isRetired() {
+        return availableCopies.get() == RETIRED;
     }
 
     public String toString() {
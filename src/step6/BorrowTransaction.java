@@ -7,23 +7,37 @@ public class BorrowTransaction {
     public String bookIsbn;
     public String userId;
     public Date borrowDate;
+    // Null only for history rows stored before loans had due dates
+    public Date dueDate;
     public Date returnDate;
     public boolean isReturned;
 
     public BorrowTransaction(String transactionId, String bookIsbn, String userId) {
+        this(transactionId, bookIsbn, userId, new Date());
+    }
+
+    public BorrowTransaction(String transactionId, String bookIsbn, String userId, Date borrowDate) {
         this.transactionId = transactionId;
         this.bookIsbn = bookIsbn;
         this.userId = userId;
-        this.borrowDate = new Date();
+        this.borrowDate = borrowDate;
         this.returnDate = null;
         this.isReturned = false;
     }
 
     public void markAsReturned() {
-        this.returnDate = new Date();
+        markAsReturned(new Date());
+    }
+
+    public void markAsReturned(Date returnDate) {
+        this.returnDate = returnDate;
         this.isReturned = true;
     }
 
+    public boolean isOverdue(long now) {
+        return !isReturned && dueDate != null && dueDate.getTime() <= now;
+    }
+
     public String toString() {
         return "Book " + bookIsbn + " borrowed by " + userId + (isReturned ? " - Returned" : " - Active");
     }
@@ -0,0 +1,209 @@
+package step6;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Streams books, users or transactions to CSV (with a header row) or JSON Lines, in the columns BulkImporter reads back.
+// Books and users are written in key order and transactions in a stable history order, so a rerun meets the rows in the same order:
+// every batch records rows written and bytes flushed in <file>.checkpoint, and a rerun truncates the file to that length
+// and carries on after that row. Memory is bounded by one page of transactions; books and users need their key array.
+public class BulkExporter {
+    public int batchSize = 10_000;
+    public long reportIntervalMillis = 5000;
+    // Progress lines; null keeps the export quiet
+    public PrintStream progress = System.out;
+
+    private final SimpleLibrary library;
+
+    public BulkExporter(SimpleLibrary library) {
+        this.library = library;
+    }
+
+    // Format from the extension: .csv, otherwise JSON Lines; returns the rows written by this run
+    public long exportFile(Path file, BulkImporter.Kind kind) throws IOException {
+        Path checkpointPath = BulkImporter.sibling(file, ".checkpoint");
+        long resumeRows = 0, resumeBytes = 0;
+        if (Files.exists(checkpointPath) && Files.exists(file)) {
+            Properties checkpoint = new Properties();
+            try (Reader in = Files.newBufferedReader(checkpointPath, StandardCharsets.UTF_8)) {
+                checkpoint.load(in);
+            }
+            resumeRows = Long.parseLong(checkpoint.getProperty("rows", "0"));
+            resumeBytes = Long.parseLong(checkpoint.getProperty("bytes", "0"));
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(resumeBytes);
+            }
+            report("Resuming " + file + " after row " + resumeRows);
+        }
+
+        boolean csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+        Export export = new Export(file, checkpointPath, csv, resumeRows, resumeBytes);
+        try {
+            if (resumeBytes == 0 && csv) export.write(kind.columns);
+            switch (kind) {
+                case BOOKS:
+                    String[] isbns = library.books.keySet().toArray(new String[0]);
+                    Arrays.sort(isbns);
+                    for (String isbn : isbns) {
+                        Book b = library.books.get(isbn);
+                        if (b != null) export.row(kind, b.isbn, b.title, b.author, Integer.toString(b.copies));
+                    }
+                    break;
+                case USERS:
+                    String[] userIds = library.users.keySet().toArray(new String[0]);
+                    Arrays.sort(userIds);
+                    for (String userId : userIds) {
+                        User u = library.users.get(userId);
+                        if (u != null) export.row(kind, u.userId, u.name);
+                    }
+                    break;
+                case TRANSACTIONS:
+                    if (library.store.loadsHistoryLazily()) {
+                        library.store.forEachTransaction(t -> {
+                            try {
+                                export.transaction(kind, t);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                    } else {
+                        for (int offset = 0; ; offset += batchSize) {
+                            List<BorrowTransaction> page = library.getTransactionHistory(offset, batchSize);
+                            for (BorrowTransaction t : page) export.transaction(kind, t);
+                            if (page.size() < batchSize) break;
+                        }
+                    }
+                    break;
+            }
+            export.close();
+        } catch (UncheckedIOException e) {
+            export.abort();
+            throw e.getCause();
+        } catch (IOException | RuntimeException e) {
+            export.abort();
+            throw e;
+        }
+        Files.deleteIfExists(checkpointPath);
+        report(String.format("Exported %s: %,d rows in %.1f s, %,d rows/s", file, export.written, export.millis() / 1000.0,
+                export.written * 1000 / Math.max(1, export.millis())));
+        return export.written;
+    }
+
+    private void report(String message) {
+        if (progress != null) progress.println(message);
+    }
+
+    private static String time(Date date) {
+        return date == null ? "" : Long.toString(date.getTime());
+    }
+
+    // Output position and checkpointing for one export run
+    private class Export {
+        final Path checkpointPath;
+        final boolean csv;
+        final CountingOutputStream bytes;
+        final Writer out;
+        final long skip, start = System.nanoTime();
+        long seen, written, lastReport = start;
+
+        Export(Path file, Path checkpointPath, boolean csv, long skip, long offset) throws IOException {
+            this.checkpointPath = checkpointPath;
+            this.csv = csv;
+            this.skip = skip;
+            OutputStream stream = offset > 0 ? Files.newOutputStream(file, StandardOpenOption.APPEND) : Files.newOutputStream(file);
+            this.bytes = new CountingOutputStream(stream, offset);
+            this.out = new BufferedWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8), 1 << 16);
+        }
+
+        void transaction(BulkImporter.Kind kind, BorrowTransaction t) throws IOException {
+            row(kind, t.transactionId, t.bookIsbn, t.userId, time(t.borrowDate), time(t.dueDate), t.isReturned ? time(t.returnDate) : "");
+        }
+
+        void row(BulkImporter.Kind kind, String... values) throws IOException {
+            if (seen++ < skip) return;
+            if (csv) {
+                write(Arrays.asList(values));
+            } else {
+                String[] keysAndValues = new String[values.length * 2];
+                for (int i = 0; i < values.length; i++) {
+                    keysAndValues[2 * i] = kind.columns.get(i);
+                    keysAndValues[2 * i + 1] = values[i].isEmpty() ? null : values[i];
+                }
+                out.write(Json.object(keysAndValues));
+                out.write('\n');
+            }
+            written++;
+            if (seen % batchSize == 0) checkpoint();
+        }
+
+        void write(List<String> fields) throws IOException {
+            out.write(Csv.format(fields));
+            out.write("\r\n");
+        }
+
+        void checkpoint() throws IOException {
+            out.flush();
+            Properties values = new Properties();
+            values.setProperty("rows", Long.toString(seen));
+            values.setProperty("bytes", Long.toString(bytes.count));
+            BulkImporter.writeCheckpoint(checkpointPath, values);
+            long now = System.nanoTime();
+            if (now - lastReport >= TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis)) {
+                lastReport = now;
+                report(String.format("%,d rows, %,d rows/s", written, written * 1000 / Math.max(1, millis())));
+            }
+        }
+
+        long millis() {
+            return (System.nanoTime() - start) / 1_000_000;
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        // Leaves the checkpoint where the last full batch ended
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out, long count) {
+            super(out);
+            this.count = count;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    // java step6.BulkExporter books|users|transactions <file>; the store comes from system properties as in the GUI
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BulkExporter books|users|transactions <file>");
+            System.exit(1);
+        }
+        SimpleLibrary library = new SimpleLibrary();
+        try {
+            new BulkExporter(library).exportFile(Paths.get(args[1]), BulkImporter.Kind.valueOf(args[0].toUpperCase()));
+        } finally {
+            library.close();
+        }
+    }
+}
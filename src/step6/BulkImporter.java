@@ -0,0 +1,384 @@
+package step6;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Streams books, users or transactions from CSV (with a header row) or JSON (JSON Lines or one array of objects) into a library.
+// The reading thread validates each row in file order; store writes go out as batches on a small pool behind a bounded queue,
+// so memory stays flat however large the file is. A batch reaches the library only once the store has committed it.
+// After each batch the number of rows whose batches have all committed goes to <file>.checkpoint, and a rerun skips that
+// many rows. Keys the library or store already holds are skipped, so batches committed past the checkpoint are not written
+// twice, and rows the store reports as already present count as skipped. Rejected rows go to <file>.rejects with their
+// row number and reason.
+public class BulkImporter {
+    public enum Kind {
+        BOOKS("isbn", "title", "author", "copies"),
+        USERS("user_id", "name"),
+        TRANSACTIONS("transaction_id", "isbn", "user_id", "borrow_time", "due_time", "return_time");
+
+        public final List<String> columns;
+
+        Kind(String... columns) {
+            this.columns = Arrays.asList(columns);
+        }
+    }
+
+    public static class Result {
+        public long rows, imported, skipped, rejected, millis;
+
+        public long rowsPerSecond() {
+            return rows * 1000 / Math.max(1, millis);
+        }
+
+        public String toString() {
+            return String.format("%,d rows (%,d imported, %,d skipped, %,d rejected) in %.1f s, %,d rows/s",
+                    rows, imported, skipped, rejected, millis / 1000.0, rowsPerSecond());
+        }
+    }
+
+    public int batchSize = 5000;
+    public int threads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    public long reportIntervalMillis = 5000;
+    // Progress lines; null keeps the import quiet
+    public PrintStream progress = System.out;
+
+    private final SimpleLibrary library;
+
+    public BulkImporter(SimpleLibrary library) {
+        this.library = library;
+    }
+
+    // Format from the extension: .csv, otherwise JSON
+    public Result importFile(Path file, Kind kind) throws IOException {
+        Path checkpointPath = sibling(file, ".checkpoint");
+        long resumeFrom = readCheckpoint(checkpointPath);
+        Checkpoint checkpoint = new Checkpoint(checkpointPath, resumeFrom);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        ThreadPoolExecutor writers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        Result result = new Result();
+        AtomicLong imported = new AtomicLong(), alreadyStored = new AtomicLong();
+        Pending pending = new Pending();
+        long start = System.nanoTime(), lastReport = start;
+        if (resumeFrom > 0) report("Resuming " + file + " after row " + resumeFrom);
+
+        try (RowReader reader = open(file);
+             PrintWriter rejects = new PrintWriter(Files.newBufferedWriter(sibling(file, ".rejects"), StandardCharsets.UTF_8,
+                     StandardOpenOption.CREATE, resumeFrom > 0 ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE))) {
+            long row = 0, batchStart = resumeFrom;
+            List<Object> batch = new ArrayList<>(batchSize);
+            Map<String, String> values;
+            while (failure.get() == null && (values = reader.next()) != null) {
+                if (++row <= resumeFrom) continue;
+                result.rows++;
+                try {
+                    Object record = parse(kind, values);
+                    if (admit(record, pending)) {
+                        batch.add(record);
+                    } else {
+                        result.skipped++;
+                    }
+                } catch (IllegalArgumentException e) {
+                    result.rejected++;
+                    rejects.println(row + "\t" + e.getMessage());
+                }
+                if (row - batchStart >= batchSize) {
+                    submit(writers, kind, batch, batchStart, row, checkpoint, pending, imported, alreadyStored, failure);
+                    batch = new ArrayList<>(batchSize);
+                    batchStart = row;
+                }
+                long now = System.nanoTime();
+                if (now - lastReport >= TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis)) {
+                    lastReport = now;
+                    report(String.format("%,d rows, %,d rows/s", result.rows, result.rows * 1_000_000_000L / Math.max(1, now - start)));
+                }
+            }
+            if (failure.get() == null && row > batchStart) submit(writers, kind, batch, batchStart, row, checkpoint, pending, imported, alreadyStored, failure);
+        } finally {
+            writers.shutdown();
+            try {
+                writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        result.millis = (System.nanoTime() - start) / 1_000_000;
+        result.imported = imported.get();
+        result.skipped += alreadyStored.get();
+        if (kind == Kind.TRANSACTIONS) library.recountTransactions();
+        if (failure.get() != null) {
+            throw new IOException("Import stopped after row " + checkpoint.committed() + "; run it again to resume", failure.get());
+        }
+        Files.deleteIfExists(checkpointPath);
+        report("Imported " + file + ": " + result);
+        return result;
+    }
+
+    private void submit(ExecutorService writers, Kind kind, List<Object> batch, long from, long to, Checkpoint checkpoint, Pending pending,
+                        AtomicLong imported, AtomicLong alreadyStored, AtomicReference<Exception> failure) {
+        writers.execute(() -> {
+            if (failure.get() != null) return;
+            try {
+                int stored = write(kind, batch);
+                imported.addAndGet(stored);
+                alreadyStored.addAndGet(batch.size() - stored);
+                commit(batch, pending);
+                checkpoint.committed(from, to);
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private int write(Kind kind, List<?> batch) {
+        if (batch.isEmpty()) return 0;
+        switch (kind) {
+            case BOOKS: return library.store.saveBooks((List<Book>) batch);
+            case USERS: return library.store.saveUsers((List<User>) batch);
+            default: return library.store.saveTransactions((List<BorrowTransaction>) batch);
+        }
+    }
+
+    // Rows accepted by the reading thread whose batches have not committed yet. They stay out of the library until the store
+    // has them, so a failed batch leaves nothing in memory that a rerun would skip as already present; meanwhile new rows
+    // are checked against the library and these together. Guarded by its own monitor.
+    private static class Pending {
+        final Set<String> keys = new HashSet<>();
+        final Map<String, Integer> loansByUser = new HashMap<>();
+        final Set<String> loans = new HashSet<>();
+        final Map<String, Integer> checkouts = new HashMap<>();
+
+        void loan(BorrowTransaction t, int delta) {
+            loansByUser.merge(t.userId, delta, Pending::sum);
+            checkouts.merge(t.bookIsbn, delta, Pending::sum);
+            if (delta > 0) loans.add(t.userId + '\t' + t.bookIsbn);
+            else loans.remove(t.userId + '\t' + t.bookIsbn);
+        }
+
+        private static Integer sum(int a, int b) {
+            return a + b == 0 ? null : a + b;
+        }
+    }
+
+    // False when the library or an uncommitted batch already has the row
+    private boolean admit(Object record, Pending pending) {
+        synchronized (pending) {
+            if (record instanceof Book) {
+                Book book = (Book) record;
+                return !library.books.containsKey(book.isbn) && pending.keys.add(book.isbn);
+            }
+            if (record instanceof User) {
+                User user = (User) record;
+                return !library.users.containsKey(user.userId) && pending.keys.add(user.userId);
+            }
+            BorrowTransaction t = (BorrowTransaction) record;
+            if (library.holdsTransaction(t.transactionId) || pending.keys.contains(t.transactionId)) return false;
+            if (!t.isReturned) {
+                User user = library.users.get(t.userId);
+                Book book = library.books.get(t.bookIsbn);
+                if (user.borrowedBooks.size() + pending.loansByUser.getOrDefault(t.userId, 0) >= User.MAX_BOOKS_LIMIT) {
+                    throw new IllegalArgumentException("User " + t.userId + " is at the loan limit");
+                }
+                if (user.hasBorrowedBook(t.bookIsbn) || pending.loans.contains(t.userId + '\t' + t.bookIsbn)) {
+                    throw new IllegalArgumentException("User " + t.userId + " already has " + t.bookIsbn);
+                }
+                if (book.availableCopies.get() <= pending.checkouts.getOrDefault(t.bookIsbn, 0)) {
+                    throw new IllegalArgumentException("No copy of " + t.bookIsbn + " is available");
+                }
+                pending.loan(t, 1);
+            }
+            pending.keys.add(t.transactionId);
+            return true;
+        }
+    }
+
+    // Brings a committed batch into memory; under the pending monitor, so admit() sees each row in exactly one place
+    private void commit(List<?> batch, Pending pending) {
+        synchronized (pending) {
+            for (Object record : batch) {
+                if (record instanceof Book) {
+                    Book book = (Book) record;
+                    library.restoreBook(book);
+                    pending.keys.remove(book.isbn);
+                } else if (record instanceof User) {
+                    User user = (User) record;
+                    library.restoreUser(user);
+                    pending.keys.remove(user.userId);
+                } else {
+                    BorrowTransaction t = (BorrowTransaction) record;
+                    library.importTransaction(t);
+                    pending.keys.remove(t.transactionId);
+                    if (!t.isReturned) pending.loan(t, -1);
+                }
+            }
+        }
+    }
+
+    // Throws IllegalArgumentException with the reason for a row that cannot be imported
+    private Object parse(Kind kind, Map<String, String> row) {
+        switch (kind) {
+            case BOOKS:
+                String copies = optional(row, "copies");
+                int count = copies == null ? 1 : parseInt(copies, "copies");
+                if (count < 1) throw new IllegalArgumentException("copies must be at least 1");
+                return new Book(required(row, "isbn"), required(row, "title"), required(row, "author"), count);
+            case USERS:
+                return new User(required(row, "user_id"), required(row, "name"));
+            default:
+                String isbn = required(row, "isbn"), userId = required(row, "user_id");
+                if (!library.books.containsKey(isbn)) throw new IllegalArgumentException("Unknown book " + isbn);
+                if (!library.users.containsKey(userId)) throw new IllegalArgumentException("Unknown user " + userId);
+                BorrowTransaction t = new BorrowTransaction(required(row, "transaction_id"), isbn, userId,
+                        new Date(parseTime(required(row, "borrow_time"), "borrow_time")));
+                String due = optional(row, "due_time"), returned = optional(row, "return_time");
+                if (due != null) t.dueDate = new Date(parseTime(due, "due_time"));
+                if (returned != null) {
+                    long returnTime = parseTime(returned, "return_time");
+                    if (returnTime < t.borrowDate.getTime()) throw new IllegalArgumentException("return_time is before borrow_time");
+                    t.markAsReturned(new Date(returnTime));
+                }
+                return t;
+        }
+    }
+
+    private static String required(Map<String, String> row, String column) {
+        String value = optional(row, column);
+        if (value == null) throw new IllegalArgumentException("Missing " + column);
+        return value;
+    }
+
+    private static String optional(Map<String, String> row, String column) {
+        String value = row.get(column);
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    private static int parseInt(String value, String column) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(column + " is not a number: " + value);
+        }
+    }
+
+    // Epoch millis as written by BulkExporter, or an ISO-8601 instant
+    private static long parseTime(String value, String column) {
+        try {
+            return value.chars().allMatch(Character::isDigit) ? Long.parseLong(value) : Instant.parse(value).toEpochMilli();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException(column + " is not a time: " + value);
+        }
+    }
+
+    private void report(String message) {
+        if (progress != null) progress.println(message);
+    }
+
+    static Path sibling(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName() + suffix);
+    }
+
+    static long readCheckpoint(Path path) throws IOException {
+        if (!Files.exists(path)) return 0;
+        Properties checkpoint = new Properties();
+        try (Reader in = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            checkpoint.load(in);
+        }
+        return Long.parseLong(checkpoint.getProperty("rows", "0"));
+    }
+
+    // Written to a temporary file and moved into place, so a crash leaves either the old or the new checkpoint
+    static void writeCheckpoint(Path path, Properties values) throws IOException {
+        Path temp = sibling(path, ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            values.store(out, null);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Batches commit out of order; the checkpoint only passes a row once every batch up to it has committed
+    private static class Checkpoint {
+        private final Path path;
+        private final TreeMap<Long, Long> done = new TreeMap<>();
+        private long committed;
+
+        Checkpoint(Path path, long committed) {
+            this.path = path;
+            this.committed = committed;
+        }
+
+        synchronized long committed() {
+            return committed;
+        }
+
+        synchronized void committed(long from, long to) throws IOException {
+            done.put(from, to);
+            long before = committed;
+            while (done.containsKey(committed)) committed = done.remove(committed);
+            if (committed == before) return;
+            Properties values = new Properties();
+            values.setProperty("rows", Long.toString(committed));
+            writeCheckpoint(path, values);
+        }
+    }
+
+    private interface RowReader extends Closeable {
+        // Column name to value, or null at the end of the file
+        Map<String, String> next() throws IOException;
+    }
+
+    private static RowReader open(Path file) throws IOException {
+        PushbackReader in = new PushbackReader(Files.newBufferedReader(file, StandardCharsets.UTF_8), 2);
+        if (!file.getFileName().toString().toLowerCase().endsWith(".csv")) {
+            return new RowReader() {
+                public Map<String, String> next() throws IOException {
+                    return Json.readObject(in);
+                }
+
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+        List<String> header = Csv.readRecord(in);
+        if (header == null) header = Collections.emptyList();
+        List<String> columns = header;
+        return new RowReader() {
+            public Map<String, String> next() throws IOException {
+                List<String> record = Csv.readRecord(in);
+                // A trailing blank line is not a row
+                while (record != null && record.size() == 1 && record.get(0).isEmpty()) record = Csv.readRecord(in);
+                if (record == null) return null;
+                Map<String, String> row = new HashMap<>();
+                for (int i = 0; i < columns.size() && i < record.size(); i++) row.put(columns.get(i).trim(), record.get(i));
+                return row;
+            }
+
+            public void close() throws IOException {
+                in.close();
+            }
+        };
+    }
+
+    // java step6.BulkImporter books|users|transactions <file>; the store comes from system properties as in the GUI
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BulkImporter books|users|transactions <file>");
+            System.exit(1);
+        }
+        SimpleLibrary library = new SimpleLibrary();
+        try {
+            new BulkImporter(library).importFile(Paths.get(args[1]), Kind.valueOf(args[0].toUpperCase()));
+        } finally {
+            library.close();
+        }
+    }
+}
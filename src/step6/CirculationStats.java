@@ -0,0 +1,160 @@
+package step6;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Circulation aggregates kept up to date by every borrow and return, so reports read them instead of scanning
+// transactions: borrows per book, the most borrowed books, borrows and returns per UTC day, and loan durations.
+// An update is a few atomic increments; the top list only takes its lock for books that reach it.
+public class CirculationStats {
+    public static final int DEFAULT_TOP_K = 20;
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    public final int topK;
+    private final Map<String, AtomicLong> borrowsByBook = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Day> days = new ConcurrentSkipListMap<>();
+    // Same bucketing as operation latencies, but the values are loan lengths in milliseconds
+    private final LatencyHistogram loanMillis = new LatencyHistogram();
+    private final LongAdder borrows = new LongAdder(), returns = new LongAdder();
+    private final TopBooks top;
+
+    public CirculationStats() {
+        this(DEFAULT_TOP_K);
+    }
+
+    public CirculationStats(int topK) {
+        this.topK = topK;
+        this.top = new TopBooks(topK);
+    }
+
+    void borrowed(BorrowTransaction t) {
+        long count = borrowsByBook.computeIfAbsent(t.bookIsbn, k -> new AtomicLong()).incrementAndGet();
+        top.offer(t.bookIsbn, count);
+        borrows.increment();
+        day(t.borrowDate.getTime()).borrows.increment();
+    }
+
+    void returned(BorrowTransaction t) {
+        returns.increment();
+        day(t.returnDate.getTime()).returns.increment();
+        loanMillis.record(t.returnDate.getTime() - t.borrowDate.getTime());
+    }
+
+    private Day day(long millis) {
+        return days.computeIfAbsent(Math.floorDiv(millis, DAY), k -> new Day());
+    }
+
+    public long borrowCount() {
+        return borrows.sum();
+    }
+
+    public long returnCount() {
+        return returns.sum();
+    }
+
+    public long activeLoans() {
+        return borrows.sum() - returns.sum();
+    }
+
+    public long borrowCount(String isbn) {
+        AtomicLong count = borrowsByBook.get(isbn);
+        return count == null ? 0 : count.get();
+    }
+
+    // ISBN to borrow count, most borrowed first; at most topK books
+    public LinkedHashMap<String, Long> topBooks(int limit) {
+        return top.snapshot(Math.min(limit, topK));
+    }
+
+    public long borrowsOn(LocalDate date) {
+        Day day = days.get(date.toEpochDay());
+        return day == null ? 0 : day.borrows.sum();
+    }
+
+    public long returnsOn(LocalDate date) {
+        Day day = days.get(date.toEpochDay());
+        return day == null ? 0 : day.returns.sum();
+    }
+
+    // {borrows, returns} for each day from..to inclusive that saw any
+    public NavigableMap<LocalDate, long[]> dailyCounts(LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, long[]> counts = new TreeMap<>();
+        days.subMap(from.toEpochDay(), true, to.toEpochDay(), true).forEach((epochDay, day) ->
+                counts.put(LocalDate.ofEpochDay(epochDay), new long[]{day.borrows.sum(), day.returns.sum()}));
+        return counts;
+    }
+
+    public long meanLoanMillis() {
+        return loanMillis.meanNanos();
+    }
+
+    // Several percentiles of returned loans' lengths, within about 3%; fractions must be ascending
+    public long[] loanPercentilesMillis(double... fractions) {
+        return loanMillis.percentilesNanos(fractions);
+    }
+
+    public String toString() {
+        long[] p = loanPercentilesMillis(0.5, 0.9);
+        return String.format("Borrows: %d, Returns: %d, Active: %d | Loan days mean %.1f, p50 %.1f, p90 %.1f | Most borrowed: %s",
+                borrowCount(), returnCount(), activeLoans(), meanLoanMillis() / (double) DAY, p[0] / (double) DAY, p[1] / (double) DAY, topBooks(3));
+    }
+
+    private static class Day {
+        final LongAdder borrows = new LongAdder(), returns = new LongAdder();
+    }
+
+    // Exact top K over counters that only grow: a book can only enter by passing the smallest count on the list,
+    // so everything below that floor is turned away without locking
+    private static class TopBooks {
+        private final String[] isbns;
+        private final long[] counts;
+        private int size;
+        private volatile long floor;
+
+        TopBooks(int k) {
+            isbns = new String[k];
+            counts = new long[k];
+        }
+
+        void offer(String isbn, long count) {
+            if (count <= floor || isbns.length == 0) return;
+            synchronized (this) {
+                int slot = -1, min = 0;
+                for (int i = 0; i < size; i++) {
+                    if (isbns[i].equals(isbn)) slot = i;
+                    if (counts[i] < counts[min]) min = i;
+                }
+                if (slot >= 0) {
+                    // Increments can arrive out of order
+                    counts[slot] = Math.max(counts[slot], count);
+                } else if (size < isbns.length) {
+                    slot = size++;
+                    isbns[slot] = isbn;
+                    counts[slot] = count;
+                } else if (count > counts[min]) {
+                    isbns[min] = isbn;
+                    counts[min] = count;
+                }
+                if (size == isbns.length) {
+                    long smallest = Long.MAX_VALUE;
+                    for (long c : counts) smallest = Math.min(smallest, c);
+                    floor = smallest;
+                }
+            }
+        }
+
+        synchronized LinkedHashMap<String, Long> snapshot(int limit) {
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+            LinkedHashMap<String, Long> ranked = new LinkedHashMap<>();
+            for (int i = 0; i < Math.min(limit, size); i++) ranked.put(isbns[order[i]], counts[order[i]]);
+            return ranked;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package step6;
+
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+// Column-wise transaction history: ISBNs and user IDs become int handles, "T<n>" IDs become longs and
+// dates become epoch millis (the due date as whole seconds after borrowing), so a row costs 36 bytes of
+// primitive arrays instead of about a dozen objects.
+// Rows live in fixed-size chunks, so growing never copies the whole column.
+public class CompactHistory {
+    private static final int CHUNK_BITS = 16, CHUNK = 1 << CHUNK_BITS, MASK = CHUNK - 1;
+    private static final long ACTIVE = Long.MIN_VALUE;
+
+    private final Handles isbns = new Handles();
+    private final Handles users = new Handles();
+    // IDs that are not "T<n>" are kept as negative handles into this table
+    private final Handles otherIds = new Handles();
+    private int[][] isbnColumn = new int[0][];
+    private int[][] userColumn = new int[0][];
+    private long[][] idColumn = new long[0][];
+    private long[][] borrowColumn = new long[0][];
+    // Seconds from borrow to due, or -1 when the loan had no due date
+    private int[][] dueColumn = new int[0][];
+    private long[][] returnColumn = new long[0][];
+    private int size;
+    // True while rows arrive in ID order, which makes lookups a binary search
+    private boolean ordered = true;
+    // Rows of loans that are still out, so a return can find its row
+    private final Map<String, Integer> openRows = new HashMap<>();
+    private int[] sortedRows;
+
+    public synchronized void append(BorrowTransaction t) {
+        if ((size & MASK) == 0) grow();
+        int chunk = size >>> CHUNK_BITS, slot = size & MASK;
+        long id = encodeId(t.transactionId);
+        isbnColumn[chunk][slot] = isbns.handle(t.bookIsbn);
+        userColumn[chunk][slot] = users.handle(t.userId);
+        idColumn[chunk][slot] = id;
+        borrowColumn[chunk][slot] = t.borrowDate.getTime();
+        dueColumn[chunk][slot] = t.dueDate == null ? -1 : (int) ((t.dueDate.getTime() - t.borrowDate.getTime()) / 1000);
+        returnColumn[chunk][slot] = t.isReturned ? t.returnDate.getTime() : ACTIVE;
+        if (size > 0 && ordered && compare(id(size - 1), id) > 0) ordered = false;
+        if (!t.isReturned) openRows.put(t.transactionId, size);
+        size++;
+    }
+
+    public synchronized void markReturned(BorrowTransaction t) {
+        Integer row = openRows.remove(t.transactionId);
+        if (row != null) returnColumn[row >>> CHUNK_BITS][row & MASK] = t.returnDate.getTime();
+    }
+
+    public synchronized void markRenewed(BorrowTransaction t) {
+        Integer row = openRows.get(t.transactionId);
+        if (row != null) dueColumn[row >>> CHUNK_BITS][row & MASK] = (int) ((t.dueDate.getTime() - t.borrowDate.getTime()) / 1000);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized BorrowTransaction find(String transactionId) {
+        long id = numericId(transactionId);
+        if (id < 0) {
+            int handle = otherIds.lookup(transactionId);
+            if (handle < 0) return null;
+            id = -1L - handle;
+        }
+        if (ordered) {
+            int low = 0, high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(id(mid), id);
+                if (c == 0) return row(mid);
+                if (c < 0) low = mid + 1;
+                else high = mid - 1;
+            }
+            return null;
+        }
+        for (int row = 0; row < size; row++) {
+            if (id(row) == id) return row(row);
+        }
+        return null;
+    }
+
+    // Rows in ID order that match every non-null filter; the scan compares handles and longs, not strings
+    public synchronized List<BorrowTransaction> find(String userId, String isbn, Date from, Date to, int offset, int limit) {
+        int user = userId == null ? -1 : users.lookup(userId);
+        int book = isbn == null ? -1 : isbns.lookup(isbn);
+        List<BorrowTransaction> page = new ArrayList<>(Math.min(limit, 1024));
+        if ((userId != null && user < 0) || (isbn != null && book < 0) || limit <= 0) return page;
+        long fromTime = from == null ? Long.MIN_VALUE : from.getTime();
+        long toTime = to == null ? Long.MAX_VALUE : to.getTime();
+        int[] order = idOrder();
+        int start = 0;
+        // Without filters every row matches, so the offset is a position
+        if (user < 0 && book < 0 && from == null && to == null) {
+            start = Math.min(offset, size);
+            offset = 0;
+        }
+        for (int i = start; i < size; i++) {
+            int row = order == null ? i : order[i];
+            int chunk = row >>> CHUNK_BITS, slot = row & MASK;
+            if (user >= 0 && userColumn[chunk][slot] != user) continue;
+            if (book >= 0 && isbnColumn[chunk][slot] != book) continue;
+            long borrowed = borrowColumn[chunk][slot];
+            if (borrowed < fromTime || borrowed >= toTime) continue;
+            if (offset > 0) {
+                offset--;
+                continue;
+            }
+            page.add(row(row));
+            if (page.size() >= limit) break;
+        }
+        return page;
+    }
+
+    // Every row in the order it was appended
+    public synchronized void forEach(Consumer<BorrowTransaction> action) {
+        for (int row = 0; row < size; row++) action.accept(row(row));
+    }
+
+    public synchronized String toString() {
+        return size + " rows, " + isbns.size() + " ISBNs, " + users.size() + " users";
+    }
+
+    // Null while rows are in ID order; otherwise a sorted row permutation, rebuilt only after appends
+    private int[] idOrder() {
+        if (ordered) return null;
+        if (sortedRows == null || sortedRows.length != size) {
+            sortedRows = IntStream.range(0, size).boxed()
+                    .sorted((a, b) -> compare(id(a), id(b)))
+                    .mapToInt(Integer::intValue).toArray();
+        }
+        return sortedRows;
+    }
+
+    private BorrowTransaction row(int row) {
+        int chunk = row >>> CHUNK_BITS, slot = row & MASK;
+        BorrowTransaction t = new BorrowTransaction(decodeId(idColumn[chunk][slot]), isbns.value(isbnColumn[chunk][slot]),
+                users.value(userColumn[chunk][slot]), new Date(borrowColumn[chunk][slot]));
+        int due = dueColumn[chunk][slot];
+        if (due >= 0) t.dueDate = new Date(borrowColumn[chunk][slot] + due * 1000L);
+        long returned = returnColumn[chunk][slot];
+        if (returned != ACTIVE) {
+            t.isReturned = true;
+            t.returnDate = new Date(returned);
+        }
+        return t;
+    }
+
+    private long id(int row) {
+        return idColumn[row >>> CHUNK_BITS][row & MASK];
+    }
+
+    private void grow() {
+        int chunks = isbnColumn.length + 1;
+        isbnColumn = Arrays.copyOf(isbnColumn, chunks);
+        userColumn = Arrays.copyOf(userColumn, chunks);
+        idColumn = Arrays.copyOf(idColumn, chunks);
+        borrowColumn = Arrays.copyOf(borrowColumn, chunks);
+        dueColumn = Arrays.copyOf(dueColumn, chunks);
+        returnColumn = Arrays.copyOf(returnColumn, chunks);
+        isbnColumn[chunks - 1] = new int[CHUNK];
+        userColumn[chunks - 1] = new int[CHUNK];
+        idColumn[chunks - 1] = new long[CHUNK];
+        borrowColumn[chunks - 1] = new long[CHUNK];
+        dueColumn[chunks - 1] = new int[CHUNK];
+        returnColumn[chunks - 1] = new long[CHUNK];
+    }
+
+    // Same order as the rest of the library: numeric "T<n>" IDs first, then any other IDs by handle
+    private static int compare(long a, long b) {
+        if ((a < 0) != (b < 0)) return a < 0 ? 1 : -1;
+        return a < 0 ? Long.compare(-a, -b) : Long.compare(a, b);
+    }
+
+    private long encodeId(String transactionId) {
+        long id = numericId(transactionId);
+        return id >= 0 ? id : -1L - otherIds.handle(transactionId);
+    }
+
+    // n for "T<n>" without leading zeros, so decoding gives back the same string; -1 otherwise
+    private static long numericId(String transactionId) {
+        int length = transactionId.length();
+        if (length < 2 || length > 19 || transactionId.charAt(0) != 'T' || transactionId.charAt(1) == '0') return -1;
+        long value = 0;
+        for (int i = 1; i < length; i++) {
+            char c = transactionId.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private String decodeId(long id) {
+        return id >= 0 ? "T" + id : otherIds.value((int) (-1L - id));
+    }
+
+    // Dense int handles for repeated strings; each distinct string is stored once
+    static class Handles {
+        private final Map<String, Integer> handles = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int handle(String value) {
+            Integer handle = handles.get(value);
+            if (handle == null) {
+                handle = values.size();
+                handles.put(value, handle);
+                values.add(value);
+            }
+            return handle;
+        }
+
+        int lookup(String value) {
+            Integer handle = handles.get(value);
+            return handle == null ? -1 : handle;
+        }
+
+        String value(int handle) {
+            return values.get(handle);
+        }
+
+        int size() {
+            return values.size();
+        }
+    }
+}
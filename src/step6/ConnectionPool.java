@@ -0,0 +1,93 @@
+package step6;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPool {
+    private final String url, username, password;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final int validationTimeoutSeconds;
+    // Connections idle longer than this get a round-trip check before they are handed out; recently used ones
+    // only get the driver's local closed check, so a busy pool adds no ping to each statement
+    public long validateAfterIdleMillis = 30_000;
+    private final BlockingQueue<LibraryDao> idle;
+    private final List<LibraryDao> all = new ArrayList<>();
+    private volatile boolean closed;
+
+    public ConnectionPool(String url, String username, String password, int maxSize) {
+        this(url, username, password, maxSize, 5000, 2);
+    }
+
+    public ConnectionPool(String url, String username, String password, int maxSize, long borrowTimeoutMillis, int validationTimeoutSeconds) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+    }
+
+    // Hands out an idle connection, opens a new one while under maxSize, otherwise waits for a release
+    public LibraryDao borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+        LibraryDao dao = idle.poll();
+        if (dao == null) dao = openIfUnderLimit();
+        if (dao == null) {
+            try {
+                dao = idle.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (dao == null) throw new SQLException("Timed out waiting for a pooled connection");
+        }
+        boolean stale = System.nanoTime() - dao.releasedNanos > TimeUnit.MILLISECONDS.toNanos(validateAfterIdleMillis);
+        if (dao.connection.isClosed() || (stale && !dao.connection.isValid(validationTimeoutSeconds))) {
+            discard(dao);
+            return borrow();
+        }
+        return dao;
+    }
+
+    public void release(LibraryDao dao) {
+        dao.releasedNanos = System.nanoTime();
+        if (closed || !idle.offer(dao)) discard(dao);
+    }
+
+    public synchronized int size() {
+        return all.size();
+    }
+
+    public int idleCount() {
+        return idle.size();
+    }
+
+    public synchronized void close() {
+        closed = true;
+        for (LibraryDao dao : all) closeQuietly(dao);
+        all.clear();
+        idle.clear();
+    }
+
+    private synchronized LibraryDao openIfUnderLimit() throws SQLException {
+        if (all.size() >= maxSize) return null;
+        LibraryDao dao = new LibraryDao(DriverManager.getConnection(url, username, password));
+        all.add(dao);
+        return dao;
+    }
+
+    private synchronized void discard(LibraryDao dao) {
+        all.remove(dao);
+        closeQuietly(dao);
+    }
+
+    private static void closeQuietly(LibraryDao dao) {
+        dao.close();
+        try { dao.connection.close(); } catch (SQLException ignored) {}
+    }
+}
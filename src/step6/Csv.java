@@ -0,0 +1,62 @@
+package step6;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.util.ArrayList;
+import java.util.List;
+
+// RFC 4180 records: fields are quoted when they hold a comma, quote or line break, and quotes are doubled
+public class Csv {
+    // Next record from the stream, or null at the end; quoted fields may span lines
+    public static List<String> readRecord(PushbackReader in) throws IOException {
+        int c = in.read();
+        if (c < 0) return null;
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c < 0) throw new IOException("Unterminated quoted field");
+                if (c == '"') {
+                    int next = in.read();
+                    if (next == '"') field.append('"');
+                    else {
+                        quoted = false;
+                        if (next >= 0) in.unread(next);
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\r' || c == '\n' || c < 0) {
+                if (c == '\r') {
+                    int next = in.read();
+                    if (next != '\n' && next >= 0) in.unread(next);
+                }
+                fields.add(field.toString());
+                return fields;
+            } else {
+                field.append((char) c);
+            }
+            c = in.read();
+        }
+    }
+
+    public static String format(List<String> fields) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) line.append(',');
+            String field = fields.get(i) == null ? "" : fields.get(i);
+            if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0 || field.indexOf('\r') >= 0) {
+                line.append('"').append(field.replace("\"", "\"\"")).append('"');
+            } else {
+                line.append(field);
+            }
+        }
+        return line.toString();
+    }
+}
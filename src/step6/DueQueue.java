@@ -0,0 +1,84 @@
+package step6;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+// Indexed binary min-heap of active loans by due time. The index maps each transaction ID to its heap slot,
+// so a return removes its loan in O(log n), and draining everything due costs O(expired log n)
+// however many loans are out.
+public class DueQueue {
+    private BorrowTransaction[] heap = new BorrowTransaction[64];
+    private final Map<String, Integer> slots = new HashMap<>();
+    private int size;
+
+    public synchronized void add(BorrowTransaction t) {
+        if (slots.containsKey(t.transactionId)) return;
+        if (size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+        heap[size] = t;
+        slots.put(t.transactionId, size);
+        siftUp(size++);
+    }
+
+    public synchronized boolean remove(BorrowTransaction t) {
+        Integer slot = slots.remove(t.transactionId);
+        if (slot == null) return false;
+        BorrowTransaction last = heap[--size];
+        heap[size] = null;
+        if (slot < size) {
+            heap[slot] = last;
+            slots.put(last.transactionId, slot);
+            siftDown(slot);
+            siftUp(slot);
+        }
+        return true;
+    }
+
+    // Removes every loan due at or before now, earliest first
+    public synchronized void pollDue(long now, Consumer<BorrowTransaction> due) {
+        while (size > 0 && heap[0].dueDate.getTime() <= now) {
+            BorrowTransaction t = heap[0];
+            remove(t);
+            due.accept(t);
+        }
+    }
+
+    public synchronized BorrowTransaction peek() {
+        return size == 0 ? null : heap[0];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void siftUp(int slot) {
+        while (slot > 0) {
+            int parent = (slot - 1) >>> 1;
+            if (due(parent) <= due(slot)) return;
+            swap(slot, parent);
+            slot = parent;
+        }
+    }
+
+    private void siftDown(int slot) {
+        while (true) {
+            int left = 2 * slot + 1, right = left + 1, smallest = slot;
+            if (left < size && due(left) < due(smallest)) smallest = left;
+            if (right < size && due(right) < due(smallest)) smallest = right;
+            if (smallest == slot) return;
+            swap(slot, smallest);
+            slot = smallest;
+        }
+    }
+
+    private long due(int slot) {
+        return heap[slot].dueDate.getTime();
+    }
+
+    private void swap(int a, int b) {
+        BorrowTransaction t = heap[a];
+        heap[a] = heap[b];
+        heap[b] = t;
+        slots.put(heap[a].transactionId, a);
+        slots.put(heap[b].transactionId, b);
+    }
+}
@@ -0,0 +1,188 @@
+package step6;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Append-only text log for local testing without a database server; each line is one tab-separated event
+public class FileStore implements LibraryStore {
+    private final File file;
+    private Writer writer;
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong skippedLines = new AtomicLong();
+
+    public FileStore(String path) {
+        this.file = new File(path);
+    }
+
+    public void saveBook(Book book) {
+        append("B", book.isbn, book.title, book.author, book.getStatus().toString(), Integer.toString(book.copies));
+    }
+
+    public void saveUser(User user) {
+        append("U", user.userId, user.name);
+    }
+
+    public void saveTransaction(BorrowTransaction t) {
+        append("T", t.transactionId, t.bookIsbn, t.userId, Long.toString(t.borrowDate.getTime()), t.dueDate == null ? "" : Long.toString(t.dueDate.getTime()));
+    }
+
+    public void markReturned(BorrowTransaction t) {
+        append("R", t.transactionId, Long.toString(t.returnDate.getTime()));
+    }
+
+    public void markRenewed(BorrowTransaction t) {
+        append("D", t.transactionId, Long.toString(t.dueDate.getTime()));
+    }
+
+    // A line that cannot be parsed is reported and skipped; a last line without its newline was cut off mid-write,
+    // so it is skipped too and cut from the file before the next append
+    public void load(SimpleLibrary library) {
+        Map<String, Book> books = new LinkedHashMap<>();
+        Map<String, User> users = new LinkedHashMap<>();
+        Map<String, BorrowTransaction> transactions = new LinkedHashMap<>();
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                boolean partialTail = completeLength() < file.length();
+                String line = reader.readLine();
+                for (long number = 1; line != null; number++) {
+                    String next = reader.readLine();
+                    if (next == null && partialTail) {
+                        report(number, "incomplete last line");
+                        break;
+                    }
+                    try {
+                        apply(line.split("\t", -1), books, users, transactions);
+                    } catch (RuntimeException e) {
+                        report(number, e.toString());
+                    }
+                    line = next;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Reading " + file + " failed: " + e.getMessage(), e);
+            }
+        }
+        books.values().forEach(library::restoreBook);
+        users.values().forEach(library::restoreUser);
+        transactions.values().forEach(library::restoreTransaction);
+    }
+
+    private static void apply(String[] f, Map<String, Book> books, Map<String, User> users, Map<String, BorrowTransaction> transactions) {
+        for (int i = 0; i < f.length; i++) f[i] = unescape(f[i]);
+        switch (f[0]) {
+            case "B":
+                Book book = new Book(f[1], f[2], f[3], f.length > 5 ? Integer.parseInt(f[5]) : 1);
+                books.put(book.isbn, book);
+                break;
+            case "U":
+                users.put(f[1], new User(f[1], f[2]));
+                break;
+            case "T":
+                BorrowTransaction borrowed = new BorrowTransaction(f[1], f[2], f[3], f.length > 4 ? new Date(Long.parseLong(f[4])) : new Date());
+                if (f.length > 5 && !f[5].isEmpty()) borrowed.dueDate = new Date(Long.parseLong(f[5]));
+                transactions.put(f[1], borrowed);
+                break;
+            case "R":
+                BorrowTransaction returned = transactions.get(f[1]);
+                if (returned != null) {
+                    returned.markAsReturned();
+                    if (f.length > 2) returned.returnDate = new Date(Long.parseLong(f[2]));
+                }
+                break;
+            case "D":
+                BorrowTransaction renewed = transactions.get(f[1]);
+                if (renewed != null) renewed.dueDate = new Date(Long.parseLong(f[2]));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown record type " + f[0]);
+        }
+    }
+
+    private void report(long line, String problem) {
+        skippedLines.incrementAndGet();
+        System.err.println(file + ":" + line + ": skipped (" + problem + ")");
+    }
+
+    // Lines skipped by the last load
+    public long skippedLines() {
+        return skippedLines.get();
+    }
+
+    // Length up to and including the last newline
+    private long completeLength() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] buffer = new byte[8192];
+            for (long end = raf.length(); end > 0; ) {
+                int n = (int) Math.min(buffer.length, end);
+                raf.seek(end - n);
+                raf.readFully(buffer, 0, n);
+                for (int i = n - 1; i >= 0; i--) {
+                    if (buffer[i] == '\n') return end - n + i + 1;
+                }
+                end -= n;
+            }
+            return 0;
+        }
+    }
+
+    public String name() {
+        return "File";
+    }
+
+    public long failedWrites() {
+        return failedWrites.get();
+    }
+
+    public synchronized void close() {
+        if (writer != null) {
+            try { writer.close(); } catch (IOException ignored) {}
+            writer = null;
+        }
+    }
+
+    private synchronized void append(String... fields) {
+        try {
+            if (writer == null) {
+                // Appends start on a fresh line, never glued onto a record cut off by a crash
+                if (file.exists()) {
+                    long complete = completeLength();
+                    if (complete < file.length()) {
+                        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                            raf.setLength(complete);
+                        }
+                    }
+                }
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            }
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) writer.write('\t');
+                writer.write(escape(fields[i]));
+            }
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            failedWrites.incrementAndGet();
+        }
+    }
+
+    private static String escape(String s) {
+        // readLine() also ends a line at a carriage return, so it is escaped along with the newline
+        return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                out.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+}
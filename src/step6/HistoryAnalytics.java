@@ -0,0 +1,339 @@
+package step6;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+// Read-only columnar snapshot of the transaction history for reporting scans. ISBNs, users and authors become dense
+// int handles and times epoch millis, in fixed-size chunks laid out like CompactHistory; each book handle is joined
+// to its author handle once, when the snapshot is taken.
+// Queries split the chunks across a fork/join pool; each task aggregates its rows into its own array and the arrays
+// are added up as the tasks join, so a scan takes no locks and allocates nothing per row.
+// Rows are addressed by index 0..size-1; filters, keys and values are functions of the row index.
+public class HistoryAnalytics {
+    private static final int CHUNK_BITS = 16, CHUNK = 1 << CHUNK_BITS, MASK = CHUNK - 1;
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    // Return time of a loan still out, and due time of one without a due date
+    public static final long ACTIVE = Long.MIN_VALUE, NO_DUE = Long.MIN_VALUE;
+    // Longs per task result above which a scan splits into one task per worker instead of a few
+    private static final int SMALL_TOTALS = 1 << 17;
+
+    public final int size;
+    // Scans run here; a pool of parallelism 1 gives the sequential baseline
+    public ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private final CompactHistory.Handles isbns, users, authors;
+    // Author handle per book handle, -1 for books no longer in the catalog
+    private final int[] bookAuthor;
+    private final int[][] isbnColumn, userColumn;
+    private final long[][] borrowColumn, returnColumn;
+    // Seconds from borrow to due, or -1 when the loan had no due date
+    private final int[][] dueColumn;
+    // UTC month of each day the history covers, counted from firstMonth
+    private final long firstDay;
+    private final int[] monthOfDay;
+    private final YearMonth firstMonth;
+
+    private HistoryAnalytics(Builder b, Map<String, Book> books) {
+        size = b.size;
+        isbns = b.isbns;
+        users = b.users;
+        authors = new CompactHistory.Handles();
+        bookAuthor = new int[isbns.size()];
+        for (int i = 0; i < bookAuthor.length; i++) {
+            Book book = books.get(isbns.value(i));
+            bookAuthor[i] = book == null ? -1 : authors.handle(book.author);
+        }
+        int chunks = (size + CHUNK - 1) >>> CHUNK_BITS;
+        isbnColumn = Arrays.copyOf(b.isbnColumn, chunks);
+        userColumn = Arrays.copyOf(b.userColumn, chunks);
+        borrowColumn = Arrays.copyOf(b.borrowColumn, chunks);
+        dueColumn = Arrays.copyOf(b.dueColumn, chunks);
+        returnColumn = Arrays.copyOf(b.returnColumn, chunks);
+        firstDay = size == 0 ? 0 : Math.floorDiv(b.minBorrow, DAY);
+        int days = size == 0 ? 0 : (int) (Math.floorDiv(b.maxBorrow, DAY) - firstDay + 1);
+        firstMonth = YearMonth.from(LocalDate.ofEpochDay(firstDay));
+        monthOfDay = new int[days];
+        for (int d = 0; d < days; d++) {
+            monthOfDay[d] = (int) firstMonth.until(YearMonth.from(LocalDate.ofEpochDay(firstDay + d)), ChronoUnit.MONTHS);
+        }
+    }
+
+    // Copies the library's whole history; lazily loading stores stream it from the database
+    public static HistoryAnalytics snapshot(SimpleLibrary library) {
+        Builder builder = new Builder();
+        library.forEachTransaction(builder::add);
+        return builder.build(library.books);
+    }
+
+    public int isbn(int row) {
+        return isbnColumn[row >>> CHUNK_BITS][row & MASK];
+    }
+
+    public int user(int row) {
+        return userColumn[row >>> CHUNK_BITS][row & MASK];
+    }
+
+    public int author(int row) {
+        return bookAuthor[isbn(row)];
+    }
+
+    public long borrowed(int row) {
+        return borrowColumn[row >>> CHUNK_BITS][row & MASK];
+    }
+
+    public long due(int row) {
+        int due = dueColumn[row >>> CHUNK_BITS][row & MASK];
+        return due < 0 ? NO_DUE : borrowed(row) + due * 1000L;
+    }
+
+    public long returned(int row) {
+        return returnColumn[row >>> CHUNK_BITS][row & MASK];
+    }
+
+    public boolean isReturned(int row) {
+        return returned(row) != ACTIVE;
+    }
+
+    public boolean isReturnedLate(int row) {
+        int due = dueColumn[row >>> CHUNK_BITS][row & MASK];
+        long returned = returned(row);
+        return due >= 0 && returned != ACTIVE && returned > borrowed(row) + due * 1000L;
+    }
+
+    // Months since monthOf(0), by UTC borrow date
+    public int month(int row) {
+        return monthOfDay[(int) (Math.floorDiv(borrowed(row), DAY) - firstDay)];
+    }
+
+    public int months() {
+        return size == 0 ? 0 : monthOfDay[monthOfDay.length - 1] + 1;
+    }
+
+    public YearMonth monthOf(int month) {
+        return firstMonth.plusMonths(month);
+    }
+
+    // Handles and their values; lookups return -1 for values the history never saw
+    public int isbnHandle(String isbn) {
+        return isbns.lookup(isbn);
+    }
+
+    public int userHandle(String userId) {
+        return users.lookup(userId);
+    }
+
+    public int authorHandle(String author) {
+        return authors.lookup(author);
+    }
+
+    public String isbnOf(int handle) {
+        return isbns.value(handle);
+    }
+
+    public String userOf(int handle) {
+        return users.value(handle);
+    }
+
+    public String authorOf(int handle) {
+        return authors.value(handle);
+    }
+
+    public int isbnCount() {
+        return isbns.size();
+    }
+
+    public int userCount() {
+        return users.size();
+    }
+
+    public int authorCount() {
+        return authors.size();
+    }
+
+    public IntPredicate all() {
+        return row -> true;
+    }
+
+    public IntPredicate borrowedBetween(long fromMillis, long toMillis) {
+        return row -> {
+            long borrowed = borrowed(row);
+            return borrowed >= fromMillis && borrowed < toMillis;
+        };
+    }
+
+    public IntPredicate byAuthor(String author) {
+        int handle = authorHandle(author);
+        return row -> handle >= 0 && author(row) == handle;
+    }
+
+    public long count(IntPredicate filter) {
+        return countBy(1, row -> 0, filter)[0];
+    }
+
+    // Rows per group, where key maps a row to 0..groups-1 or to -1 to leave it out
+    public long[] countBy(int groups, IntUnaryOperator key, IntPredicate filter) {
+        return scan(groups, key, null, filter);
+    }
+
+    public long[] sumBy(int groups, IntUnaryOperator key, IntToLongFunction value, IntPredicate filter) {
+        return Arrays.copyOfRange(aggregate(groups, key, value, filter), groups, 2 * groups);
+    }
+
+    // Counts in [0, groups) and sums in [groups, 2 * groups), from one pass
+    public long[] aggregate(int groups, IntUnaryOperator key, IntToLongFunction value, IntPredicate filter) {
+        return scan(groups, key, value, filter);
+    }
+
+    // Without a value only the counts are kept
+    private long[] scan(int groups, IntUnaryOperator key, IntToLongFunction value, IntPredicate filter) {
+        int chunks = (size + CHUNK - 1) >>> CHUNK_BITS;
+        int width = value == null ? groups : Math.multiplyExact(2, groups);
+        // A few tasks per worker keeps the workers busy without a result array per chunk; with large result arrays
+        // one per worker keeps the live arrays, and so the memory, down to about one per worker
+        int tasks = pool.getParallelism() * (width > SMALL_TOTALS ? 1 : 4);
+        int grain = Math.max(1, (chunks + tasks - 1) / tasks);
+        return pool.invoke(new Scan(0, chunks, grain, groups, key, value, filter));
+    }
+
+    // Author to loans borrowed in each UTC month; books no longer in the catalog are left out
+    public Map<String, SortedMap<YearMonth, Long>> loansPerAuthorPerMonth(IntPredicate filter) {
+        int months = months();
+        long[] counts = countBy(Math.multiplyExact(authorCount(), months), row -> {
+            int author = author(row);
+            return author < 0 ? -1 : author * months + month(row);
+        }, filter);
+        Map<String, SortedMap<YearMonth, Long>> result = new HashMap<>();
+        for (int group = 0; group < counts.length; group++) {
+            if (counts[group] == 0) continue;
+            result.computeIfAbsent(authorOf(group / months), k -> new TreeMap<>()).put(monthOf(group % months), counts[group]);
+        }
+        return result;
+    }
+
+    public Map<String, Long> loansPerAuthor(IntPredicate filter) {
+        long[] counts = countBy(authorCount(), this::author, filter);
+        Map<String, Long> result = new HashMap<>();
+        for (int author = 0; author < counts.length; author++) {
+            if (counts[author] > 0) result.put(authorOf(author), counts[author]);
+        }
+        return result;
+    }
+
+    // Users with at least minLate loans returned after their due date, most late returns first
+    public LinkedHashMap<String, Long> repeatedLateReturns(int minLate, IntPredicate filter) {
+        long[] late = countBy(userCount(), this::user, row -> isReturnedLate(row) && filter.test(row));
+        Integer[] offenders = IntStream.range(0, late.length).filter(u -> late[u] >= minLate).boxed().toArray(Integer[]::new);
+        Arrays.sort(offenders, (a, b) -> Long.compare(late[b], late[a]));
+        LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+        for (int user : offenders) result.put(userOf(user), late[user]);
+        return result;
+    }
+
+    // Mean length of returned loans per author, in milliseconds
+    public Map<String, Long> meanLoanMillisByAuthor(IntPredicate filter) {
+        int authors = authorCount();
+        long[] totals = aggregate(authors, this::author, row -> returned(row) - borrowed(row), row -> isReturned(row) && filter.test(row));
+        Map<String, Long> result = new HashMap<>();
+        for (int author = 0; author < authors; author++) {
+            if (totals[author] > 0) result.put(authorOf(author), totals[authors + author] / totals[author]);
+        }
+        return result;
+    }
+
+    public String toString() {
+        return String.format("%,d rows, %,d books, %,d users, %,d authors, %d months", size, isbnCount(), userCount(), authorCount(), months());
+    }
+
+    private class Scan extends RecursiveTask<long[]> {
+        final int from, to, grain, groups;
+        final IntUnaryOperator key;
+        final IntToLongFunction value;
+        final IntPredicate filter;
+
+        Scan(int from, int to, int grain, int groups, IntUnaryOperator key, IntToLongFunction value, IntPredicate filter) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.groups = groups;
+            this.key = key;
+            this.value = value;
+            this.filter = filter;
+        }
+
+        protected long[] compute() {
+            if (to - from <= grain) {
+                long[] totals = new long[value == null ? groups : 2 * groups];
+                int end = Math.min(size, to << CHUNK_BITS);
+                for (int row = from << CHUNK_BITS; row < end; row++) {
+                    if (!filter.test(row)) continue;
+                    int group = key.applyAsInt(row);
+                    if (group < 0) continue;
+                    totals[group]++;
+                    if (value != null) totals[groups + group] += value.applyAsLong(row);
+                }
+                return totals;
+            }
+            int mid = (from + to) >>> 1;
+            Scan left = new Scan(from, mid, grain, groups, key, value, filter);
+            left.fork();
+            long[] totals = new Scan(mid, to, grain, groups, key, value, filter).compute();
+            long[] other = left.join();
+            for (int i = 0; i < totals.length; i++) totals[i] += other[i];
+            return totals;
+        }
+    }
+
+    // Appends rows into growing chunks; build joins the books to their authors
+    public static class Builder {
+        private final CompactHistory.Handles isbns = new CompactHistory.Handles(), users = new CompactHistory.Handles();
+        private int[][] isbnColumn = new int[0][], userColumn = new int[0][], dueColumn = new int[0][];
+        private long[][] borrowColumn = new long[0][], returnColumn = new long[0][];
+        private int size;
+        private long minBorrow = Long.MAX_VALUE, maxBorrow = Long.MIN_VALUE;
+
+        public void add(BorrowTransaction t) {
+            long borrowed = t.borrowDate.getTime();
+            add(t.bookIsbn, t.userId, borrowed, t.dueDate == null ? NO_DUE : t.dueDate.getTime(), t.isReturned ? t.returnDate.getTime() : ACTIVE);
+        }
+
+        public void add(String isbn, String userId, long borrowed, long due, long returned) {
+            if ((size & MASK) == 0) grow();
+            int chunk = size >>> CHUNK_BITS, slot = size & MASK;
+            isbnColumn[chunk][slot] = isbns.handle(isbn);
+            userColumn[chunk][slot] = users.handle(userId);
+            borrowColumn[chunk][slot] = borrowed;
+            dueColumn[chunk][slot] = due == NO_DUE ? -1 : (int) ((due - borrowed) / 1000);
+            returnColumn[chunk][slot] = returned;
+            minBorrow = Math.min(minBorrow, borrowed);
+            maxBorrow = Math.max(maxBorrow, borrowed);
+            size++;
+        }
+
+        public HistoryAnalytics build(Map<String, Book> books) {
+            return new HistoryAnalytics(this, books);
+        }
+
+        private void grow() {
+            int chunks = isbnColumn.length + 1;
+            isbnColumn = Arrays.copyOf(isbnColumn, chunks);
+            userColumn = Arrays.copyOf(userColumn, chunks);
+            borrowColumn = Arrays.copyOf(borrowColumn, chunks);
+            dueColumn = Arrays.copyOf(dueColumn, chunks);
+            returnColumn = Arrays.copyOf(returnColumn, chunks);
+            isbnColumn[chunks - 1] = new int[CHUNK];
+            userColumn[chunks - 1] = new int[CHUNK];
+            borrowColumn[chunks - 1] = new long[CHUNK];
+            dueColumn[chunks - 1] = new int[CHUNK];
+            returnColumn[chunks - 1] = new long[CHUNK];
+        }
+    }
+}
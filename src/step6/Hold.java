@@ -0,0 +1,28 @@
+package step6;
+
+import java.util.Date;
+import java.util.concurrent.ScheduledFuture;
+
+public class Hold {
+    public final String isbn;
+    public final String userId;
+    public final Date placedDate;
+    public final Date expiryDate;
+    // Expiry timer task, cancelled when the hold is fulfilled or cancelled first
+    ScheduledFuture<?> expiry;
+
+    public Hold(String isbn, String userId, Date placedDate, Date expiryDate) {
+        this.isbn = isbn;
+        this.userId = userId;
+        this.placedDate = placedDate;
+        this.expiryDate = expiryDate;
+    }
+
+    public boolean isExpired(long now) {
+        return now >= expiryDate.getTime();
+    }
+
+    public String toString() {
+        return "Hold on " + isbn + " for " + userId + " until " + expiryDate;
+    }
+}
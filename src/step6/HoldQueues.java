@@ -0,0 +1,100 @@
+package step6;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+// Per-ISBN FIFO queues of waiting users; a queue exists only while someone is waiting
+public class HoldQueues {
+    private final Map<String, Deque<Hold>> queues = new ConcurrentHashMap<>();
+
+    // False when the user is already waiting for this ISBN
+    public boolean add(Hold hold) {
+        boolean[] added = {false};
+        queues.compute(hold.isbn, (isbn, queue) -> {
+            if (queue == null) queue = new ArrayDeque<>();
+            for (Hold waiting : queue) if (waiting.userId.equals(hold.userId)) return queue;
+            queue.addLast(hold);
+            added[0] = true;
+            return queue;
+        });
+        return added[0];
+    }
+
+    // Puts a hold back at the head, for a hand-off that fell through after the hold was taken
+    public void restore(Hold hold) {
+        queues.compute(hold.isbn, (isbn, queue) -> {
+            if (queue == null) queue = new ArrayDeque<>();
+            queue.addFirst(hold);
+            return queue;
+        });
+    }
+
+    public Hold remove(String isbn, String userId) {
+        Hold[] removed = {null};
+        queues.computeIfPresent(isbn, (key, queue) -> {
+            for (Iterator<Hold> it = queue.iterator(); it.hasNext(); ) {
+                Hold hold = it.next();
+                if (hold.userId.equals(userId)) {
+                    it.remove();
+                    removed[0] = hold;
+                    break;
+                }
+            }
+            return queue.isEmpty() ? null : queue;
+        });
+        return removed[0];
+    }
+
+    public boolean remove(Hold hold) {
+        boolean[] removed = {false};
+        queues.computeIfPresent(hold.isbn, (key, queue) -> {
+            removed[0] = queue.remove(hold);
+            return queue.isEmpty() ? null : queue;
+        });
+        return removed[0];
+    }
+
+    public boolean hasWaiting(String isbn) {
+        return queues.containsKey(isbn);
+    }
+
+    // Takes the first hold in FIFO order that passes the check; holds that fail keep their place,
+    // and expired ones met on the way are dropped and passed to the callback
+    public Hold next(String isbn, long now, Predicate<Hold> eligible, Consumer<Hold> expired) {
+        Hold[] next = {null};
+        List<Hold> dropped = new ArrayList<>();
+        queues.computeIfPresent(isbn, (key, queue) -> {
+            for (Iterator<Hold> it = queue.iterator(); it.hasNext(); ) {
+                Hold hold = it.next();
+                if (hold.isExpired(now)) {
+                    it.remove();
+                    dropped.add(hold);
+                } else if (eligible.test(hold)) {
+                    it.remove();
+                    next[0] = hold;
+                    break;
+                }
+            }
+            return queue.isEmpty() ? null : queue;
+        });
+        dropped.forEach(expired);
+        return next[0];
+    }
+
+    public List<Hold> holds(String isbn) {
+        List<Hold> holds = new ArrayList<>();
+        queues.computeIfPresent(isbn, (key, queue) -> {
+            holds.addAll(queue);
+            return queue;
+        });
+        return holds;
+    }
+
+    public int size() {
+        int size = 0;
+        for (String isbn : queues.keySet()) size += holds(isbn).size();
+        return size;
+    }
+}
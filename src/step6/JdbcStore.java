@@ -0,0 +1,434 @@
+package step6;
+
+import java.sql.*;
+import java.util.*;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+public class JdbcStore implements LibraryStore {
+    public static final String DEFAULT_URL = "jdbc:mysql://localhost:3306/library_db?useCursorFetch=true";
+
+    public final ConnectionPool pool;
+    public WriteBehindWriter writeBehind;
+    public static final String TRANSACTION_COLUMNS = "transaction_id, book_isbn, user_id, borrow_time, due_time, return_time, is_returned, seq";
+
+    public int fetchSize = 1000;
+    private LibraryDao writerDao;
+    private final AtomicLong failedWrites = new AtomicLong();
+    // Per filter, the seq of the last row before each page offset seen so far. Rows are never deleted and new rows get
+    // a higher seq, so a recorded boundary stays valid and the next page starts from it instead of skipping rows.
+    private final Map<String, NavigableMap<Integer, Long>> pageEnds = new LinkedHashMap<String, NavigableMap<Integer, Long>>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, NavigableMap<Integer, Long>> eldest) {
+            return size() > 64;
+        }
+    };
+    public static final int MAX_PAGE_ENDS = 4096;
+
+    public JdbcStore(String url, String username, String password, int poolSize) throws SQLException {
+        if (url.startsWith("jdbc:mysql:")) {
+            try {
+                Class.forName("com.mysql.cj.jdbc.Driver");
+            } catch (ClassNotFoundException e) {
+                throw new SQLException("MySQL driver not found", e);
+            }
+        }
+        pool = new ConnectionPool(url, username, password, poolSize);
+        LibraryDao dao = pool.borrow();
+        try {
+            createTables(dao.connection);
+        } finally {
+            pool.release(dao);
+        }
+    }
+
+    public void createTables(Connection connection) throws SQLException {
+        String[] sql = {
+                "CREATE TABLE IF NOT EXISTS books (isbn VARCHAR(50) PRIMARY KEY, title VARCHAR(255), author VARCHAR(255), status VARCHAR(20), copies INT NOT NULL DEFAULT 1)",
+                "CREATE TABLE IF NOT EXISTS users (user_id VARCHAR(50) PRIMARY KEY, name VARCHAR(255))",
+                "CREATE TABLE IF NOT EXISTS transactions (transaction_id VARCHAR(50) PRIMARY KEY, book_isbn VARCHAR(50), user_id VARCHAR(50), borrow_date VARCHAR(50), return_date VARCHAR(50), is_returned INT DEFAULT 0, borrow_time BIGINT, return_time BIGINT, due_time BIGINT, seq BIGINT AUTO_INCREMENT UNIQUE, id_number BIGINT)"
+        };
+        try (Statement stmt = connection.createStatement()) {
+            for (String s : sql) stmt.execute(s);
+            // Tables created before multi-copy inventory hold one copy per ISBN
+            if (!hasColumn(connection, "books", "copies")) stmt.execute("ALTER TABLE books ADD COLUMN copies INT NOT NULL DEFAULT 1");
+            // Tables created before history paging lack the sortable epoch columns and lookup indexes
+            if (!hasColumn(connection, "transactions", "borrow_time")) stmt.execute("ALTER TABLE transactions ADD COLUMN borrow_time BIGINT");
+            if (!hasColumn(connection, "transactions", "return_time")) stmt.execute("ALTER TABLE transactions ADD COLUMN return_time BIGINT");
+            if (!hasColumn(connection, "transactions", "due_time")) stmt.execute("ALTER TABLE transactions ADD COLUMN due_time BIGINT");
+            if (!hasIndex(connection, "transactions", "idx_transactions_user")) stmt.execute("CREATE INDEX idx_transactions_user ON transactions (user_id)");
+            if (!hasIndex(connection, "transactions", "idx_transactions_book")) stmt.execute("CREATE INDEX idx_transactions_book ON transactions (book_isbn)");
+            if (!hasIndex(connection, "transactions", "idx_transactions_borrow_time")) stmt.execute("CREATE INDEX idx_transactions_borrow_time ON transactions (borrow_time)");
+            // History is ordered by insertion sequence; adding the column numbers existing rows in table order
+            if (!hasColumn(connection, "transactions", "seq")) stmt.execute("ALTER TABLE transactions ADD COLUMN seq BIGINT AUTO_INCREMENT UNIQUE");
+            // Startup reads the highest ID as MAX(id_number) off its index; older rows only need the current maximum filled in
+            if (!hasColumn(connection, "transactions", "id_number")) {
+                stmt.execute("ALTER TABLE transactions ADD COLUMN id_number BIGINT");
+                backfillIdNumber(connection);
+            }
+            if (!hasIndex(connection, "transactions", "idx_transactions_id_number")) stmt.execute("CREATE INDEX idx_transactions_id_number ON transactions (id_number)");
+        }
+    }
+
+    // One-time scan: IDs are "T" + counter, so among the longest IDs the string maximum is also the numeric maximum
+    private static void backfillIdNumber(Connection connection) throws SQLException {
+        String maxId = null;
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT MAX(transaction_id) FROM transactions WHERE LENGTH(transaction_id) = (SELECT MAX(LENGTH(transaction_id)) FROM transactions)");
+             ResultSet rs = stmt.executeQuery()) {
+            if (rs.next()) maxId = rs.getString(1);
+        }
+        Long number = maxId == null ? null : idNumber(maxId);
+        if (number == null) return;
+        try (PreparedStatement stmt = connection.prepareStatement("UPDATE transactions SET id_number = ? WHERE transaction_id = ?")) {
+            stmt.setLong(1, number);
+            stmt.setString(2, maxId);
+            stmt.executeUpdate();
+        }
+    }
+
+    // The counter behind a "T" + counter ID, or null for any other ID
+    static Long idNumber(String transactionId) {
+        if (!transactionId.startsWith("T")) return null;
+        try {
+            return Long.parseLong(transactionId.substring(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        DatabaseMetaData meta = connection.getMetaData();
+        for (String t : new String[]{table, table.toUpperCase()}) {
+            for (String c : new String[]{column, column.toUpperCase()}) {
+                try (ResultSet rs = meta.getColumns(connection.getCatalog(), null, t, c)) {
+                    if (rs.next()) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasIndex(Connection connection, String table, String index) throws SQLException {
+        DatabaseMetaData meta = connection.getMetaData();
+        for (String t : new String[]{table, table.toUpperCase()}) {
+            try (ResultSet rs = meta.getIndexInfo(connection.getCatalog(), null, t, false, false)) {
+                while (rs.next()) if (index.equalsIgnoreCase(rs.getString("INDEX_NAME"))) return true;
+            }
+        }
+        return false;
+    }
+
+    // Queues writes for a background batch writer, which keeps one pooled connection for itself
+    public void enableWriteBehind(int queueCapacity, int batchSize, long flushIntervalMillis) throws SQLException {
+        if (writeBehind != null) return;
+        writerDao = pool.borrow();
+        writeBehind = new WriteBehindWriter(writerDao, queueCapacity, batchSize, flushIntervalMillis);
+    }
+
+    public void saveBook(Book book) {
+        write(LibraryDao.INSERT_BOOK, book.isbn, book.title, book.author, book.getStatus().toString(), book.copies);
+    }
+
+    public void saveUser(User user) {
+        write(LibraryDao.INSERT_USER, user.userId, user.name);
+    }
+
+    public void saveTransaction(BorrowTransaction t) {
+        write(LibraryDao.INSERT_TRANSACTION, t.transactionId, idNumber(t.transactionId), t.bookIsbn, t.userId, t.borrowDate.toString(), t.borrowDate.getTime(),
+                t.dueDate == null ? null : t.dueDate.getTime());
+    }
+
+    public void markReturned(BorrowTransaction t) {
+        write(LibraryDao.UPDATE_TRANSACTION_RETURNED, t.returnDate.toString(), t.returnDate.getTime(), t.transactionId);
+    }
+
+    public void markRenewed(BorrowTransaction t) {
+        write(LibraryDao.UPDATE_TRANSACTION_DUE, t.dueDate.getTime(), t.transactionId);
+    }
+
+    private void write(String sql, Object... params) {
+        if (writeBehind != null) {
+            writeBehind.submit(sql, params);
+            return;
+        }
+        LibraryDao dao = null;
+        try {
+            dao = pool.borrow();
+            dao.update(sql, params);
+        } catch (SQLException e) {
+            failedWrites.incrementAndGet();
+        } finally {
+            if (dao != null) pool.release(dao);
+        }
+    }
+
+    public int saveBooks(List<Book> books) {
+        List<Object[]> rows = new ArrayList<>(books.size());
+        for (Book b : books) rows.add(new Object[]{b.isbn, b.title, b.author, b.getStatus().toString(), b.copies});
+        return batch(Collections.singletonMap(LibraryDao.INSERT_BOOK, rows));
+    }
+
+    public int saveUsers(List<User> users) {
+        List<Object[]> rows = new ArrayList<>(users.size());
+        for (User u : users) rows.add(new Object[]{u.userId, u.name});
+        return batch(Collections.singletonMap(LibraryDao.INSERT_USER, rows));
+    }
+
+    public int saveTransactions(List<BorrowTransaction> transactions) {
+        List<Object[]> inserts = new ArrayList<>(transactions.size()), returns = new ArrayList<>();
+        for (BorrowTransaction t : transactions) {
+            inserts.add(new Object[]{t.transactionId, idNumber(t.transactionId), t.bookIsbn, t.userId, t.borrowDate.toString(), t.borrowDate.getTime(),
+                    t.dueDate == null ? null : t.dueDate.getTime()});
+            if (t.isReturned) returns.add(new Object[]{t.returnDate.toString(), t.returnDate.getTime(), t.transactionId});
+        }
+        Map<String, List<Object[]>> bySql = new LinkedHashMap<>();
+        bySql.put(LibraryDao.INSERT_TRANSACTION, inserts);
+        bySql.put(LibraryDao.UPDATE_TRANSACTION_RETURNED, returns);
+        return batch(bySql);
+    }
+
+    // One JDBC batch per statement, committed together on a pooled connection, so parallel imports use several connections.
+    // A batch that hits rows from an earlier, interrupted import is rolled back and written row by row, skipping duplicate keys.
+    // Returns the rows the first statement inserted.
+    private int batch(Map<String, List<Object[]>> bySql) {
+        flush();
+        String first = bySql.keySet().iterator().next();
+        LibraryDao dao = null;
+        try {
+            dao = pool.borrow();
+            Connection connection = dao.connection;
+            connection.setAutoCommit(false);
+            try {
+                int inserted = 0;
+                for (Map.Entry<String, List<Object[]>> entry : bySql.entrySet()) {
+                    if (entry.getValue().isEmpty()) continue;
+                    PreparedStatement stmt = dao.prepare(entry.getKey());
+                    synchronized (stmt) {
+                        for (Object[] params : entry.getValue()) {
+                            LibraryDao.bind(stmt, params);
+                            stmt.addBatch();
+                        }
+                        int[] counts = stmt.executeBatch();
+                        if (entry.getKey().equals(first)) for (int count : counts) inserted += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+                    }
+                }
+                connection.commit();
+                return inserted;
+            } catch (SQLException e) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+                int inserted = 0;
+                for (Map.Entry<String, List<Object[]>> entry : bySql.entrySet()) {
+                    PreparedStatement stmt = dao.prepare(entry.getKey());
+                    synchronized (stmt) {
+                        stmt.clearBatch();
+                    }
+                    for (Object[] params : entry.getValue()) {
+                        try {
+                            int count = dao.update(entry.getKey(), params);
+                            if (entry.getKey().equals(first)) inserted += count;
+                        } catch (SQLException rowError) {
+                            if (!isDuplicateKey(rowError)) throw rowError;
+                        }
+                    }
+                }
+                return inserted;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Batch write failed: " + e.getMessage(), e);
+        } finally {
+            if (dao != null) pool.release(dao);
+        }
+    }
+
+    private static boolean isDuplicateKey(SQLException e) {
+        return e instanceof SQLIntegrityConstraintViolationException || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+    }
+
+    // Streams books, users and active loans only; returned history stays in the database until paged in
+    public void load(SimpleLibrary library) {
+        LibraryDao dao = null;
+        try {
+            dao = pool.borrow();
+            Connection connection = dao.connection;
+
+            // Load books; available copies follow from the active loans loaded below
+            stream(connection, "SELECT isbn, title, author, copies FROM books", rs ->
+                    library.restoreBook(new Book(rs.getString("isbn"), rs.getString("title"), rs.getString("author"), rs.getInt("copies"))));
+
+            // Load users
+            stream(connection, "SELECT user_id, name FROM users", rs ->
+                    library.restoreUser(new User(rs.getString("user_id"), rs.getString("name"))));
+
+            // Load active loans, which also rebuilds each user's borrowed books
+            stream(connection, "SELECT " + TRANSACTION_COLUMNS + " FROM transactions WHERE is_returned = 0", rs ->
+                    library.restoreTransaction(readTransaction(rs)));
+
+            // The highest numbered ID, read from the end of the id_number index
+            try (PreparedStatement stmt = connection.prepareStatement("SELECT MAX(id_number) FROM transactions");
+                 ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    long max = rs.getLong(1);
+                    if (!rs.wasNull()) library.restoreTransactionCounter("T" + max);
+                }
+            }
+        } catch (SQLException e) {
+            // A partial load would look like a library that lost data, so the library fails to start instead
+            throw new IllegalStateException("Loading the library failed: " + e.getMessage(), e);
+        } finally {
+            if (dao != null) pool.release(dao);
+        }
+    }
+
+    public boolean loadsHistoryLazily() {
+        return true;
+    }
+
+    // Keyset paging on the seq index: a page continues from the nearest recorded boundary at or before its offset,
+    // so scrolling forward reads only the rows it returns and a jump skips only the distance from that boundary
+    public List<BorrowTransaction> findTransactions(String userId, String isbn, Date from, Date to, int offset, int limit) {
+        StringBuilder where = new StringBuilder(" WHERE 1 = 1");
+        List<Object> params = new ArrayList<>();
+        if (userId != null) { where.append(" AND user_id = ?"); params.add(userId); }
+        if (isbn != null) { where.append(" AND book_isbn = ?"); params.add(isbn); }
+        if (from != null) { where.append(" AND borrow_time >= ?"); params.add(from.getTime()); }
+        if (to != null) { where.append(" AND borrow_time < ?"); params.add(to.getTime()); }
+        String filter = where + " " + params;
+
+        Map.Entry<Integer, Long> boundary;
+        synchronized (pageEnds) {
+            NavigableMap<Integer, Long> ends = pageEnds.get(filter);
+            boundary = ends == null ? null : ends.floorEntry(offset);
+        }
+        if (boundary != null) { where.append(" AND seq > ?"); params.add(boundary.getValue()); }
+        int skip = offset - (boundary == null ? 0 : boundary.getKey());
+        params.add(limit);
+        String sql = "SELECT " + TRANSACTION_COLUMNS + " FROM transactions" + where + " ORDER BY seq LIMIT ?";
+        if (skip > 0) { sql += " OFFSET ?"; params.add(skip); }
+
+        long[] lastSeq = new long[1];
+        List<BorrowTransaction> page = query(sql, lastSeq, params.toArray());
+        if (!page.isEmpty()) {
+            synchronized (pageEnds) {
+                NavigableMap<Integer, Long> ends = pageEnds.computeIfAbsent(filter, k -> new TreeMap<>());
+                if (ends.size() >= MAX_PAGE_ENDS) ends.clear();
+                ends.put(offset + page.size(), lastSeq[0]);
+            }
+        }
+        return page;
+    }
+
+    public void forEachTransaction(Consumer<BorrowTransaction> action) {
+        flush();
+        LibraryDao dao = null;
+        try {
+            dao = pool.borrow();
+            stream(dao.connection, "SELECT " + TRANSACTION_COLUMNS + " FROM transactions ORDER BY seq",
+                    rs -> action.accept(readTransaction(rs)));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Reading transactions failed: " + e.getMessage(), e);
+        } finally {
+            if (dao != null) pool.release(dao);
+        }
+    }
+
+    public BorrowTransaction findTransaction(String transactionId) {
+        List<BorrowTransaction> found = query("SELECT " + TRANSACTION_COLUMNS + " FROM transactions WHERE transaction_id = ?", null, transactionId);
+        return found.isEmpty() ? null : found.get(0);
+    }
+
+    public long countTransactions() {
+        flush();
+        LibraryDao dao = null;
+        try {
+            dao = pool.borrow();
+            try (Statement stmt = dao.connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM transactions")) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Counting transactions failed: " + e.getMessage(), e);
+        } finally {
+            if (dao != null) pool.release(dao);
+        }
+    }
+
+    // lastSeq, when given, receives the seq of the last row read
+    private List<BorrowTransaction> query(String sql, long[] lastSeq, Object... params) {
+        flush();
+        List<BorrowTransaction> result = new ArrayList<>();
+        LibraryDao dao = null;
+        try {
+            dao = pool.borrow();
+            try (PreparedStatement stmt = dao.connection.prepareStatement(sql)) {
+                LibraryDao.bind(stmt, params);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(readTransaction(rs));
+                        if (lastSeq != null) lastSeq[0] = rs.getLong("seq");
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            // An empty page would pass for the end of the history
+            throw new IllegalStateException("Reading transactions failed: " + e.getMessage(), e);
+        } finally {
+            if (dao != null) pool.release(dao);
+        }
+        return result;
+    }
+
+    // Rows written before borrow_time existed fall back to the load time, as they always did
+    private static BorrowTransaction readTransaction(ResultSet rs) throws SQLException {
+        long borrowTime = rs.getLong("borrow_time");
+        BorrowTransaction t = new BorrowTransaction(rs.getString("transaction_id"), rs.getString("book_isbn"), rs.getString("user_id"),
+                rs.wasNull() ? new Date() : new Date(borrowTime));
+        long dueTime = rs.getLong("due_time");
+        if (!rs.wasNull()) t.dueDate = new Date(dueTime);
+        if (rs.getInt("is_returned") == 1) {
+            t.markAsReturned();
+            long returnTime = rs.getLong("return_time");
+            if (!rs.wasNull()) t.returnDate = new Date(returnTime);
+        }
+        return t;
+    }
+
+    private interface RowHandler {
+        void accept(ResultSet rs) throws SQLException;
+    }
+
+    // Forward-only, read-only cursor with a bounded fetch size; MySQL also needs useCursorFetch=true on the URL
+    private void stream(Connection connection, String sql, RowHandler handler) throws SQLException {
+        try (Statement stmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(fetchSize);
+            try (ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) handler.accept(rs);
+            }
+        }
+    }
+
+    public String name() {
+        return "Database";
+    }
+
+    public void flush() {
+        if (writeBehind != null) writeBehind.flush();
+    }
+
+    public long failedWrites() {
+        return failedWrites.get() + (writeBehind != null ? writeBehind.failedWrites() : 0);
+    }
+
+    public int queueDepth() {
+        return writeBehind != null ? writeBehind.queueDepth() : 0;
+    }
+
+    public void close() {
+        if (writeBehind != null) writeBehind.close();
+        if (writerDao != null) pool.release(writerDao);
+        pool.close();
+    }
+}
@@ -0,0 +1,399 @@
+package step6;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Embedded durable store: every event is a binary record appended to memory-mapped, fixed-size segment files.
+// Record layout is [int length][int crc32][byte type][fields], and a zero length marks the end of written data.
+// Snapshots of the current state, returned history included, let startup replay only the tail of the journal written after them.
+public class JournalStore implements LibraryStore {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final byte BOOK = 1, USER = 2, STATUS = 3, BORROW = 4, RETURN = 5, RENEW = 6;
+    private static final int HEADER = 8;
+    private static final int KEEP_SNAPSHOTS = 2;
+
+    // 0 disables periodic snapshots; snapshot() can still be called directly
+    public long snapshotIntervalMillis = 0;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long forceIntervalMillis;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    private volatile boolean dirty;
+    private Thread forcer;
+    private Thread snapshotter;
+    private SimpleLibrary library;
+    private final Object snapshotLock = new Object();
+    private long lastSnapshotPosition = -1;
+
+    // forceIntervalMillis = 0 forces after every record; otherwise records are group-committed on that interval
+    public JournalStore(String directory, int segmentSize, long forceIntervalMillis) {
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        this.forceIntervalMillis = forceIntervalMillis;
+    }
+
+    public void saveBook(Book book) {
+        append(BOOK, out -> {
+            out.writeUTF(book.isbn);
+            out.writeUTF(book.title);
+            out.writeUTF(book.author);
+            out.writeByte(book.getStatus().ordinal());
+            out.writeInt(book.copies);
+        });
+    }
+
+    public void saveUser(User user) {
+        append(USER, out -> {
+            out.writeUTF(user.userId);
+            out.writeUTF(user.name);
+        });
+    }
+
+    public void saveTransaction(BorrowTransaction t) {
+        append(BORROW, out -> {
+            out.writeUTF(t.transactionId);
+            out.writeUTF(t.bookIsbn);
+            out.writeUTF(t.userId);
+            out.writeLong(t.borrowDate.getTime());
+            out.writeLong(t.dueDate == null ? 0 : t.dueDate.getTime());
+        });
+    }
+
+    public void markReturned(BorrowTransaction t) {
+        append(RETURN, out -> {
+            out.writeUTF(t.transactionId);
+            out.writeLong(t.returnDate.getTime());
+        });
+    }
+
+    public void markRenewed(BorrowTransaction t) {
+        append(RENEW, out -> {
+            out.writeUTF(t.transactionId);
+            out.writeLong(t.dueDate.getTime());
+        });
+    }
+
+    // Each batch is forced before returning, so an import checkpoint never runs ahead of the journal
+    public int saveBooks(List<Book> books) {
+        int saved = LibraryStore.super.saveBooks(books);
+        flush();
+        return saved;
+    }
+
+    public int saveUsers(List<User> users) {
+        int saved = LibraryStore.super.saveUsers(users);
+        flush();
+        return saved;
+    }
+
+    public int saveTransactions(List<BorrowTransaction> transactions) {
+        int saved = LibraryStore.super.saveTransactions(transactions);
+        flush();
+        return saved;
+    }
+
+    // Starts from the newest valid snapshot and replays the segments from its position onward,
+    // then leaves the last segment positioned after its final valid record
+    public void load(SimpleLibrary library) {
+        this.library = library;
+        Map<String, Book> books = new LinkedHashMap<>();
+        Map<String, User> users = new LinkedHashMap<>();
+        Map<String, BorrowTransaction> transactions = new LinkedHashMap<>();
+        LibrarySnapshot snapshot = null;
+        try {
+            Files.createDirectories(directory);
+            snapshot = latestSnapshot();
+            if (snapshot != null) {
+                books.putAll(snapshot.books);
+                users.putAll(snapshot.users);
+                transactions.putAll(snapshot.transactions);
+                lastSnapshotPosition = position(snapshot.segment, snapshot.offset);
+            }
+            List<Integer> segments = segmentNumbers();
+            for (int number : segments) {
+                if (snapshot != null && number < snapshot.segment) continue;
+                try (FileChannel readChannel = FileChannel.open(segmentPath(number), StandardOpenOption.READ)) {
+                    MappedByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+                    if (snapshot != null && number == snapshot.segment) buffer.position(Math.min(snapshot.offset, buffer.limit()));
+                    while (true) {
+                        byte[] body = nextRecord(buffer);
+                        if (body == null) break;
+                        apply(body, books, users, transactions);
+                    }
+                    if (number == segments.get(segments.size() - 1)) openSegment(number, buffer.position());
+                }
+            }
+            if (segments.isEmpty()) openSegment(1, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        books.values().forEach(library::restoreBook);
+        users.values().forEach(library::restoreUser);
+        transactions.values().forEach(library::restoreTransaction);
+        if (snapshot != null) library.restoreTransactionCounter(snapshot.nextTransaction);
+        startForcer();
+        startSnapshotter();
+    }
+
+    // Records the journal position first and then copies the live maps, so the image may already contain
+    // some events after that position; replaying them again is harmless because each sets absolute state
+    public void snapshot() {
+        if (library == null) throw new IllegalStateException("Journal is not loaded");
+        synchronized (snapshotLock) {
+            int number, offset;
+            synchronized (this) {
+                if (segment == null) return;
+                number = segmentNumber;
+                offset = segment.position();
+            }
+            if (position(number, offset) == lastSnapshotPosition) return;
+            try {
+                LibrarySnapshot.write(snapshotPath(number, offset), library, number, offset);
+                lastSnapshotPosition = position(number, offset);
+                List<Path> snapshots = snapshotPaths();
+                for (int i = 0; i < snapshots.size() - KEEP_SNAPSHOTS; i++) Files.deleteIfExists(snapshots.get(i));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    public String name() {
+        return "Journal";
+    }
+
+    public void flush() {
+        MappedByteBuffer current;
+        synchronized (this) {
+            current = segment;
+        }
+        dirty = false;
+        if (current != null) current.force();
+    }
+
+    public void close() {
+        if (snapshotter != null) {
+            snapshotter.interrupt();
+            try {
+                snapshotter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            snapshot();
+        }
+        closeSegment();
+    }
+
+    private synchronized void closeSegment() {
+        if (forcer != null) forcer.interrupt();
+        if (segment != null) segment.force();
+        if (channel != null) {
+            try { channel.close(); } catch (IOException ignored) {}
+        }
+        segment = null;
+        channel = null;
+    }
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(byte type, RecordWriter writer) {
+        byte[] body;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            writer.write(out);
+            body = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        synchronized (this) {
+            if (segment == null) throw new IllegalStateException("Journal is not open");
+            if (segment.remaining() < HEADER + body.length + 4) roll(body.length);
+            segment.putInt(body.length);
+            segment.putInt((int) crc.getValue());
+            segment.put(body);
+            // Zero the next length so a shorter record never leaves an old tail looking valid
+            if (segment.remaining() >= 4) segment.putInt(segment.position(), 0);
+            if (forceIntervalMillis == 0) segment.force();
+            else dirty = true;
+        }
+    }
+
+    private void roll(int bodyLength) {
+        if (HEADER + bodyLength + 4 > segmentSize) throw new IllegalArgumentException("Record larger than a journal segment");
+        segment.force();
+        try {
+            channel.close();
+            openSegment(segmentNumber + 1, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized void openSegment(int number, int position) throws IOException {
+        if (channel != null) channel.close();
+        channel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.position(position);
+        segmentNumber = number;
+    }
+
+    private void startForcer() {
+        if (forceIntervalMillis <= 0 || forcer != null) return;
+        forcer = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(forceIntervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (dirty) flush();
+            }
+        }, "library-journal-force");
+        forcer.setDaemon(true);
+        forcer.start();
+    }
+
+    private void startSnapshotter() {
+        if (snapshotIntervalMillis <= 0 || snapshotter != null) return;
+        snapshotter = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(snapshotIntervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    snapshot();
+                } catch (RuntimeException e) {
+                    System.err.println("Journal snapshot failed: " + e.getMessage());
+                }
+            }
+        }, "library-journal-snapshot");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    // A zero length, a short tail or a checksum mismatch (a torn write) ends the segment
+    private static byte[] nextRecord(MappedByteBuffer buffer) {
+        if (buffer.remaining() < HEADER) return null;
+        int start = buffer.position();
+        int length = buffer.getInt();
+        int crc = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            buffer.position(start);
+            return null;
+        }
+        byte[] body = new byte[length];
+        buffer.get(body);
+        CRC32 check = new CRC32();
+        check.update(body);
+        if ((int) check.getValue() != crc) {
+            buffer.position(start);
+            return null;
+        }
+        return body;
+    }
+
+    private static void apply(byte[] body, Map<String, Book> books, Map<String, User> users, Map<String, BorrowTransaction> transactions) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        switch (in.readByte()) {
+            case BOOK:
+                String isbn = in.readUTF(), title = in.readUTF(), author = in.readUTF();
+                in.readByte();
+                // Journals written before multi-copy inventory end the record after the status
+                Book book = new Book(isbn, title, author, in.available() >= 4 ? in.readInt() : 1);
+                books.put(book.isbn, book);
+                break;
+            case USER:
+                String userId = in.readUTF();
+                users.put(userId, new User(userId, in.readUTF()));
+                break;
+            case STATUS:
+                // Older journals logged every status change; availability now follows from the active loans
+                break;
+            case BORROW:
+                String transactionId = in.readUTF();
+                BorrowTransaction borrowed = new BorrowTransaction(transactionId, in.readUTF(), in.readUTF(), new Date(in.readLong()));
+                // Zero, or a record that ends early, means the loan was logged without a due date
+                long dueTime = in.available() >= 8 ? in.readLong() : 0;
+                if (dueTime != 0) borrowed.dueDate = new Date(dueTime);
+                transactions.put(transactionId, borrowed);
+                break;
+            case RETURN:
+                BorrowTransaction returned = transactions.get(in.readUTF());
+                long returnTime = in.readLong();
+                if (returned != null) {
+                    returned.markAsReturned();
+                    returned.returnDate = new Date(returnTime);
+                }
+                break;
+            case RENEW:
+                BorrowTransaction renewed = transactions.get(in.readUTF());
+                long renewedDue = in.readLong();
+                if (renewed != null) renewed.dueDate = new Date(renewedDue);
+                break;
+        }
+    }
+
+    private List<Integer> segmentNumbers() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(n -> n.startsWith("journal-") && n.endsWith(".log"))
+                    .map(n -> Integer.parseInt(n.substring(8, n.length() - 4)))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path segmentPath(int number) {
+        return directory.resolve(String.format("journal-%08d.log", number));
+    }
+
+    // A torn or corrupt newest snapshot falls back to the one before it. Snapshots without returned history
+    // are passed over, since starting from one would drop every loan returned before it; segments are never
+    // deleted, so the full journal replay is always available.
+    private LibrarySnapshot latestSnapshot() throws IOException {
+        List<Path> snapshots = snapshotPaths();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            LibrarySnapshot snapshot = LibrarySnapshot.read(snapshots.get(i));
+            if (snapshot != null && snapshot.hasHistory) return snapshot;
+        }
+        return null;
+    }
+
+    // Oldest first; the zero-padded names sort by segment and then offset
+    private List<Path> snapshotPaths() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(p -> {
+                        String n = p.getFileName().toString();
+                        return n.startsWith("snapshot-") && n.endsWith(".snap");
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private Path snapshotPath(int number, int offset) {
+        return directory.resolve(String.format("snapshot-%08d-%010d.snap", number, offset));
+    }
+
+    private static long position(int number, int offset) {
+        return ((long) number << 32) | offset;
+    }
+}
@@ -0,0 +1,110 @@
+package step6;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Just enough JSON for flat records: objects whose values are strings, numbers, booleans or null.
+// Numbers and booleans are returned as their text; nested objects and arrays are rejected.
+public class Json {
+    // Next object from JSON Lines or from one top-level array of objects, or null at the end
+    public static Map<String, String> readObject(PushbackReader in) throws IOException {
+        int c = skip(in, ",[]");
+        if (c < 0) return null;
+        if (c != '{') throw new IOException("Expected '{' but found '" + (char) c + "'");
+        Map<String, String> object = new LinkedHashMap<>();
+        c = skip(in, "");
+        if (c == '}') return object;
+        while (true) {
+            if (c != '"') throw new IOException("Expected a field name");
+            String key = readString(in);
+            if (skip(in, "") != ':') throw new IOException("Expected ':' after \"" + key + "\"");
+            object.put(key, readValue(in));
+            c = skip(in, "");
+            if (c == '}') return object;
+            if (c != ',') throw new IOException("Expected ',' or '}' in object");
+            c = skip(in, "");
+        }
+    }
+
+    public static String quote(String value) {
+        if (value == null) return "null";
+        StringBuilder out = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20) out.append(String.format("\\u%04x", (int) c));
+                    else out.append(c);
+            }
+        }
+        return out.append('"').toString();
+    }
+
+    // Alternating keys and values; null values are written as JSON null
+    public static String object(String... keysAndValues) {
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            if (i > 0) out.append(',');
+            out.append(quote(keysAndValues[i])).append(':').append(quote(keysAndValues[i + 1]));
+        }
+        return out.append('}').toString();
+    }
+
+    private static String readValue(PushbackReader in) throws IOException {
+        int c = skip(in, "");
+        if (c == '"') return readString(in);
+        if (c == '{' || c == '[') throw new IOException("Nested values are not supported");
+        StringBuilder literal = new StringBuilder();
+        while (c >= 0 && c != ',' && c != '}' && !Character.isWhitespace(c)) {
+            literal.append((char) c);
+            c = in.read();
+        }
+        if (c >= 0) in.unread(c);
+        String text = literal.toString();
+        if (text.isEmpty()) throw new IOException("Expected a value");
+        return text.equals("null") ? null : text;
+    }
+
+    private static String readString(PushbackReader in) throws IOException {
+        StringBuilder out = new StringBuilder();
+        while (true) {
+            int c = in.read();
+            if (c < 0) throw new IOException("Unterminated string");
+            if (c == '"') return out.toString();
+            if (c != '\\') {
+                out.append((char) c);
+                continue;
+            }
+            c = in.read();
+            switch (c) {
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < 4; i++) hex[i] = (char) in.read();
+                    out.append((char) Integer.parseInt(new String(hex), 16));
+                    break;
+                default: out.append((char) c);
+            }
+        }
+    }
+
+    // Skips whitespace and the given separator characters, returning the next other character or -1
+    private static int skip(PushbackReader in, String separators) throws IOException {
+        int c;
+        do {
+            c = in.read();
+        } while (c >= 0 && (Character.isWhitespace(c) || separators.indexOf(c) >= 0));
+        return c;
+    }
+}
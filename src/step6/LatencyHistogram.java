@@ -0,0 +1,81 @@
+package step6;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// HDR-style histogram of nanosecond latencies: values below 64 get their own bucket, larger ones share
+// 32 buckets per power of two, so any recorded value is off by at most about 3% and memory stays fixed.
+// Recording is one atomic increment, with no locks and no allocation.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 6, SUB = 1 << SUB_BITS, HALF = SUB / 2;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF + HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        total.increment();
+        sum.add(nanos);
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long meanNanos() {
+        long n = total.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    // Upper bound of the bucket holding the given fraction of values, e.g. 0.99; 0 when empty
+    public long percentileNanos(double fraction) {
+        return percentilesNanos(fraction)[0];
+    }
+
+    // Several percentiles from one pass over the buckets; fractions must be ascending
+    public long[] percentilesNanos(double... fractions) {
+        long[] result = new long[fractions.length];
+        long n = total.sum();
+        if (n == 0) return result;
+        long seen = 0;
+        int next = 0;
+        for (int i = 0; i < BUCKETS && next < fractions.length; i++) {
+            long count = counts.get(i);
+            if (count == 0) continue;
+            seen += count;
+            while (next < fractions.length && seen >= Math.max(1, (long) Math.ceil(fractions[next] * n))) result[next++] = highestValue(i);
+        }
+        // Values recorded while scanning can leave the last ranks unreached
+        while (next < fractions.length) result[next++] = maxNanos();
+        return result;
+    }
+
+    public long maxNanos() {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (counts.get(i) > 0) return highestValue(i);
+        }
+        return 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        total.reset();
+        sum.reset();
+    }
+
+    // Values below SUB map to themselves; above that the top SUB_BITS bits pick the bucket within the power of two
+    static int bucket(long value) {
+        int shift = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BITS);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    static long highestValue(int bucket) {
+        if (bucket < SUB) return bucket;
+        int shift = bucket / HALF - 1;
+        long top = bucket - (long) shift * HALF;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,55 @@
+package step6;
+
+import java.sql.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class LibraryDao {
+    public static final String INSERT_BOOK = "INSERT INTO books (isbn, title, author, status, copies) VALUES (?, ?, ?, ?, ?)";
+    public static final String INSERT_USER = "INSERT INTO users (user_id, name) VALUES (?, ?)";
+    public static final String INSERT_TRANSACTION = "INSERT INTO transactions (transaction_id, id_number, book_isbn, user_id, borrow_date, borrow_time, due_time, is_returned) VALUES (?, ?, ?, ?, ?, ?, ?, 0)";
+    public static final String UPDATE_TRANSACTION_RETURNED = "UPDATE transactions SET return_date = ?, return_time = ?, is_returned = 1 WHERE transaction_id = ?";
+    public static final String UPDATE_TRANSACTION_DUE = "UPDATE transactions SET due_time = ? WHERE transaction_id = ?";
+
+    public final Connection connection;
+    // When ConnectionPool last took it back; only read and written by the pool
+    long releasedNanos = System.nanoTime();
+    private final Map<String, PreparedStatement> statements = new ConcurrentHashMap<>();
+
+    public LibraryDao(Connection connection) {
+        this.connection = connection;
+    }
+
+    // Each SQL string is prepared once per connection; callers must synchronize on the statement while using it
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt != null) return stmt;
+        synchronized (statements) {
+            stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = connection.prepareStatement(sql);
+                statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+    }
+
+    public int update(String sql, Object... params) throws SQLException {
+        PreparedStatement stmt = prepare(sql);
+        synchronized (stmt) {
+            bind(stmt, params);
+            return stmt.executeUpdate();
+        }
+    }
+
+    public void close() {
+        for (PreparedStatement stmt : statements.values()) {
+            try { stmt.close(); } catch (SQLException ignored) {}
+        }
+        statements.clear();
+    }
+
+    public static void bind(PreparedStatement stmt, Object[] params) throws SQLException {
+        for (int i = 0; i < params.length; i++) stmt.setObject(i + 1, params[i]);
+    }
+}
@@ -1,15 +1,41 @@
 package step6;
 
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 public class LibraryGUI extends JFrame {
-    private final SimpleLibrary library = new SimpleLibrary();
+    private static final int SEARCH_LIMIT = 100;
+    private static final int STATS_REFRESH_MILLIS = 1000;
+    private static final int STATS_DAYS = 14;
+
+    // Library calls may block on the database, so none of them run on the EDT
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile SimpleLibrary library;
     private JTextField isbnField, titleField, authorField, userIdField, nameField;
-    private JTextField borrowIsbnField, borrowUserIdField, returnIsbnField, returnUserIdField;
+    private JTextField searchField;
+    private JTextField borrowIsbnField, borrowUserIdField, returnIsbnField, returnUserIdField, holdIsbnField, holdUserIdField;
     private JTextArea statusArea;
-    private DefaultTableModel booksModel, usersModel, transactionsModel;
+    private RowListModel<Book> booksModel;
+    private RowListModel<User> usersModel;
+    private TransactionsTableModel transactionsModel;
+    // While the full book list is rebuilt off the EDT, books added or changed meanwhile are re-applied after the swap
+    private int bookRebuilds;
+    private final List<Book> changedDuringRebuild = new ArrayList<>();
+    private JTable transactionsTable;
+    private JProgressBar progressBar;
+    private JLabel statsSummary;
+    private RowListModel<Map.Entry<String, Long>> topBooksModel;
+    private RowListModel<Map.Entry<LocalDate, long[]>> dailyModel;
 
     public LibraryGUI() {
         initializeGUI();
@@ -25,9 +51,56 @@ public class LibraryGUI extends JFrame {
         tabs.addTab("Books", createBooksTab());
         tabs.addTab("Users", createUsersTab());
         tabs.addTab("Transactions", createTransactionsTab());
+        tabs.addTab("Statistics", createStatisticsTab());
 
         add(tabs);
-        refreshTables();
+
+        progressBar = new JProgressBar();
+        progressBar.setIndeterminate(true);
+        progressBar.setStringPainted(true);
+        progressBar.setString("Loading library...");
+        add(progressBar, BorderLayout.SOUTH);
+
+        addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                executor.shutdown();
+                if (library != null) library.close();
+            }
+        });
+        loadLibrary();
+    }
+
+    private void loadLibrary() {
+        new SwingWorker<SimpleLibrary, Void>() {
+            // Built here, off the EDT, while nothing else can change the new library yet
+            private RowListModel.Rows<Book> bookRows;
+            private RowListModel.Rows<User> userRows;
+
+            protected SimpleLibrary doInBackground() {
+                SimpleLibrary loaded = new SimpleLibrary();
+                bookRows = booksModel.build(loaded.books.values());
+                userRows = usersModel.build(loaded.users.values());
+                return loaded;
+            }
+
+            protected void done() {
+                progressBar.setVisible(false);
+                SimpleLibrary loaded;
+                try {
+                    loaded = get();
+                } catch (Exception e) {
+                    updateStatus("Library failed to load: " + e.getMessage());
+                    return;
+                }
+                booksModel.setRows(bookRows);
+                usersModel.setRows(userRows);
+                transactionsModel = new TransactionsTableModel(loaded, executor);
+                transactionsTable.setModel(transactionsModel);
+                loaded.addListener(new TableUpdater());
+                library = loaded;
+                updateStatus("Library ready in " + loaded.readyMillis + " ms (" + loaded.store.name() + ")");
+            }
+        }.execute();
     }
 
     private JPanel createBooksTab() {
@@ -36,8 +109,13 @@ public class LibraryGUI extends JFrame {
                 new JTextField[]{isbnField = new JTextField(), titleField = new JTextField(), authorField = new JTextField()},
                 this::addBook), BorderLayout.NORTH);
 
-        booksModel = new DefaultTableModel(new String[]{"ISBN", "Title", "Author", "Status"}, 0);
-        panel.add(new JScrollPane(new JTable(booksModel)), BorderLayout.CENTER);
+        booksModel = new RowListModel<>(new String[]{"ISBN", "Title", "Author", "Status"}, book -> book.isbn,
+                (book, column) -> column == 0 ? book.isbn : column == 1 ? book.title : column == 2 ? book.author
+                        : book.copies == 1 ? book.getStatus() : book.availableCopies.get() + "/" + book.copies + " available");
+        JPanel center = new JPanel(new BorderLayout(5, 0));
+        center.add(createSearchPanel(), BorderLayout.NORTH);
+        center.add(new JScrollPane(new JTable(booksModel)), BorderLayout.CENTER);
+        panel.add(center, BorderLayout.CENTER);
 
         statusArea = new JTextArea(3, 0);
         statusArea.setEditable(false);
@@ -47,13 +125,26 @@ public class LibraryGUI extends JFrame {
         return panel;
     }
 
+    private JPanel createSearchPanel() {
+        JPanel panel = new JPanel(new BorderLayout(5, 0));
+        searchField = new JTextField();
+        searchField.addActionListener(e -> showSearchResults());
+        JButton clear = new JButton("Clear");
+        clear.addActionListener(e -> { searchField.setText(""); showSearchResults(); });
+        panel.add(new JLabel("Search title/author:"), BorderLayout.WEST);
+        panel.add(searchField, BorderLayout.CENTER);
+        panel.add(clear, BorderLayout.EAST);
+        return panel;
+    }
+
     private JPanel createUsersTab() {
         JPanel panel = new JPanel(new BorderLayout());
         panel.add(createFormPanel("Add User", new String[]{"User ID:", "Name:"},
                 new JTextField[]{userIdField = new JTextField(), nameField = new JTextField()},
                 this::addUser), BorderLayout.NORTH);
 
-        usersModel = new DefaultTableModel(new String[]{"User ID", "Name", "Books Borrowed"}, 0);
+        usersModel = new RowListModel<>(new String[]{"User ID", "Name", "Books Borrowed"}, user -> user.userId,
+                (user, column) -> column == 0 ? user.userId : column == 1 ? user.name : user.borrowedBooks.size() + "/" + User.MAX_BOOKS_LIMIT);
         panel.add(new JScrollPane(new JTable(usersModel)), BorderLayout.CENTER);
 
         return panel;
@@ -62,21 +153,65 @@ public class LibraryGUI extends JFrame {
     private JPanel createTransactionsTab() {
         JPanel panel = new JPanel(new BorderLayout());
 
-        JPanel forms = new JPanel(new GridLayout(1, 2, 10, 0));
+        JPanel forms = new JPanel(new GridLayout(1, 3, 10, 0));
         forms.add(createFormPanel("Borrow Book", new String[]{"ISBN:", "User ID:"},
                 new JTextField[]{borrowIsbnField = new JTextField(), borrowUserIdField = new JTextField()},
                 this::borrowBook));
         forms.add(createFormPanel("Return Book", new String[]{"ISBN:", "User ID:"},
                 new JTextField[]{returnIsbnField = new JTextField(), returnUserIdField = new JTextField()},
                 this::returnBook));
+        forms.add(createFormPanel("Place Hold", new String[]{"ISBN:", "User ID:"},
+                new JTextField[]{holdIsbnField = new JTextField(), holdUserIdField = new JTextField()},
+                this::placeHold));
         panel.add(forms, BorderLayout.NORTH);
 
-        transactionsModel = new DefaultTableModel(new String[]{"ID", "Book", "User", "Status"}, 0);
-        panel.add(new JScrollPane(new JTable(transactionsModel)), BorderLayout.CENTER);
+        transactionsTable = new JTable();
+        panel.add(new JScrollPane(transactionsTable), BorderLayout.CENTER);
 
         return panel;
     }
 
+    // Reads the library's running aggregates, so a refresh costs the same however long the history is
+    private JPanel createStatisticsTab() {
+        JPanel panel = new JPanel(new BorderLayout(0, 5));
+        statsSummary = new JLabel(" ");
+        statsSummary.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        panel.add(statsSummary, BorderLayout.NORTH);
+
+        topBooksModel = new RowListModel<>(new String[]{"ISBN", "Title", "Borrows"}, Map.Entry::getKey, (entry, column) -> {
+            if (column == 1) {
+                Book book = library.books.get(entry.getKey());
+                return book == null ? "" : book.title;
+            }
+            return column == 0 ? entry.getKey() : entry.getValue();
+        });
+        dailyModel = new RowListModel<>(new String[]{"Day", "Borrows", "Returns"}, entry -> entry.getKey().toString(),
+                (entry, column) -> column == 0 ? entry.getKey() : entry.getValue()[column - 1]);
+        JPanel tables = new JPanel(new GridLayout(1, 2, 10, 0));
+        JScrollPane top = new JScrollPane(new JTable(topBooksModel));
+        top.setBorder(BorderFactory.createTitledBorder("Most Borrowed"));
+        JScrollPane daily = new JScrollPane(new JTable(dailyModel));
+        daily.setBorder(BorderFactory.createTitledBorder("Last " + STATS_DAYS + " Days (UTC)"));
+        tables.add(top);
+        tables.add(daily);
+        panel.add(tables, BorderLayout.CENTER);
+
+        // Only refreshes while the tab is on screen
+        new javax.swing.Timer(STATS_REFRESH_MILLIS, e -> { if (library != null && panel.isShowing()) refreshStatistics(); }).start();
+        return panel;
+    }
+
+    private void refreshStatistics() {
+        CirculationStats stats = library.stats;
+        long[] p = stats.loanPercentilesMillis(0.5, 0.9);
+        double day = 86_400_000.0;
+        statsSummary.setText(String.format("Borrows: %,d   Returns: %,d   On loan: %,d   Loan length (days): mean %.1f, median %.1f, p90 %.1f",
+                stats.borrowCount(), stats.returnCount(), stats.activeLoans(), stats.meanLoanMillis() / day, p[0] / day, p[1] / day));
+        topBooksModel.setRows(stats.topBooks(stats.topK).entrySet());
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        dailyModel.setRows(stats.dailyCounts(today.minusDays(STATS_DAYS - 1), today).descendingMap().entrySet());
+    }
+
     private JPanel createFormPanel(String title, String[] labels, JTextField[] fields, Runnable action) {
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBorder(BorderFactory.createTitledBorder(title));
@@ -88,7 +223,7 @@ public class LibraryGUI extends JFrame {
         }
 
         JButton button = new JButton(title);
-        button.addActionListener(e -> { action.run(); refreshTables(); });
+        button.addActionListener(e -> action.run());
         form.add(button);
         form.add(new JLabel(""));
 
@@ -99,38 +234,63 @@ public class LibraryGUI extends JFrame {
     private void addBook() {
         if (validateFields(isbnField, titleField, authorField)) {
             Book book = new Book(isbnField.getText().trim(), titleField.getText().trim(), authorField.getText().trim());
-            library.addBook(book);
-            updateStatus("Book added: " + book.toString());
             clearFields(isbnField, titleField, authorField);
+            submit(() -> { library.addBook(book); return book; }, added -> "Book added: " + added);
         }
     }
 
     private void addUser() {
         if (validateFields(userIdField, nameField)) {
             User user = new User(userIdField.getText().trim(), nameField.getText().trim());
-            library.addUser(user);
-            updateStatus("User added: " + user.toString());
             clearFields(userIdField, nameField);
+            submit(() -> { library.addUser(user); return user; }, added -> "User added: " + added);
         }
     }
 
     private void borrowBook() {
         if (validateFields(borrowIsbnField, borrowUserIdField)) {
-            boolean success = library.borrowBook(borrowIsbnField.getText().trim(), borrowUserIdField.getText().trim());
-            updateStatus(success ? "Book borrowed successfully!" : "Borrow failed!");
+            String isbn = borrowIsbnField.getText().trim(), userId = borrowUserIdField.getText().trim();
             clearFields(borrowIsbnField, borrowUserIdField);
+            submit(() -> library.borrowBook(isbn, userId), success -> success ? "Book borrowed successfully!" : "Borrow failed!");
         }
     }
 
     private void returnBook() {
         if (validateFields(returnIsbnField, returnUserIdField)) {
-            boolean success = library.returnBook(returnIsbnField.getText().trim(), returnUserIdField.getText().trim());
-            updateStatus(success ? "Book returned successfully!" : "Return failed!");
+            String isbn = returnIsbnField.getText().trim(), userId = returnUserIdField.getText().trim();
             clearFields(returnIsbnField, returnUserIdField);
+            submit(() -> library.returnBook(isbn, userId), success -> success ? "Book returned successfully!" : "Return failed!");
+        }
+    }
+
+    // A free copy is borrowed at once; otherwise the user waits and gets the next returned copy
+    private void placeHold() {
+        if (validateFields(holdIsbnField, holdUserIdField)) {
+            String isbn = holdIsbnField.getText().trim(), userId = holdUserIdField.getText().trim();
+            clearFields(holdIsbnField, holdUserIdField);
+            submit(() -> library.placeHold(isbn, userId), success -> success ? "Hold placed for " + userId + " on " + isbn : "Hold failed!");
         }
     }
 
+    // Runs the call on the executor and reports its outcome back on the EDT
+    private <T> void submit(Callable<T> call, Function<T, String> message) {
+        executor.execute(() -> {
+            String status;
+            try {
+                status = message.apply(call.call());
+            } catch (Exception e) {
+                status = "Operation failed: " + e.getMessage();
+            }
+            String result = status;
+            SwingUtilities.invokeLater(() -> updateStatus(result));
+        });
+    }
+
     private boolean validateFields(JTextField... fields) {
+        if (library == null) {
+            updateStatus("Library is still loading...");
+            return false;
+        }
         for (JTextField field : fields) {
             if (field.getText().trim().isEmpty()) {
                 updateStatus("Please fill all fields!");
@@ -149,23 +309,99 @@ public class LibraryGUI extends JFrame {
             statusArea.setText(message + "\n" + (statusArea.getText().length() > 200 ? "" : statusArea.getText()));
     }
 
-    private void refreshTables() {
-        if (booksModel != null) {
-            booksModel.setRowCount(0);
-            library.books.values().forEach(book ->
-                    booksModel.addRow(new Object[]{book.isbn, book.title, book.author, book.status}));
+    private void showSearchResults() {
+        if (library == null) return;
+        String query = searchField.getText().trim();
+        if (query.isEmpty()) {
+            showAllBooks();
+            return;
+        }
+        executor.execute(() -> {
+            List<Book> results = library.search(query, SEARCH_LIMIT);
+            SwingUtilities.invokeLater(() -> { if (query.equals(searchField.getText().trim())) booksModel.setRows(results); });
+        });
+    }
+
+    // Listing the whole catalog is O(books), and decodes every book when the catalog is off-heap, so the rows are built
+    // on the executor and only swapped in on the EDT
+    private void showAllBooks() {
+        bookRebuilds++;
+        executor.execute(() -> {
+            RowListModel.Rows<Book> rows = booksModel.build(library.books.values());
+            SwingUtilities.invokeLater(() -> {
+                if (searchField.getText().trim().isEmpty()) {
+                    booksModel.setRows(rows);
+                    changedDuringRebuild.forEach(booksModel::put);
+                }
+                if (--bookRebuilds == 0) changedDuringRebuild.clear();
+            });
+        });
+    }
+
+    // Library events can come from any thread. Bursts are coalesced into one EDT task, and repeated
+    // updates of the same row collapse into the latest one.
+    private class TableUpdater implements LibraryListener {
+        private final Map<String, Runnable> pending = new LinkedHashMap<>();
+
+        public void bookAdded(Book book) {
+            post("book+" + book.isbn, () -> {
+                if (bookRebuilds > 0) changedDuringRebuild.add(book);
+                if (searchField.getText().trim().isEmpty()) booksModel.put(book);
+            });
+        }
+
+        public void bookStatusChanged(Book book) {
+            post("book~" + book.isbn, () -> {
+                if (bookRebuilds > 0) changedDuringRebuild.add(book);
+                booksModel.changed(book);
+            });
+        }
+
+        public void userAdded(User user) {
+            post("user+" + user.userId, () -> usersModel.put(user));
+        }
+
+        public void userChanged(User user) {
+            post("user~" + user.userId, () -> usersModel.changed(user));
         }
 
-        if (usersModel != null) {
-            usersModel.setRowCount(0);
-            library.users.values().forEach(user ->
-                    usersModel.addRow(new Object[]{user.userId, user.name, user.borrowedBooks.size() + "/" + User.MAX_BOOKS_LIMIT}));
+        public void transactionAdded(BorrowTransaction transaction) {
+            post("loan+" + transaction.transactionId, () -> transactionsModel.transactionAdded(transaction));
         }
 
-        if (transactionsModel != null) {
-            transactionsModel.setRowCount(0);
-            library.transactions.values().forEach(t ->
-                    transactionsModel.addRow(new Object[]{t.transactionId, t.bookIsbn, t.userId, t.isReturned ? "Returned" : "Active"}));
+        public void transactionReturned(BorrowTransaction transaction) {
+            post("loan~" + transaction.transactionId, () -> transactionsModel.transactionReturned(transaction));
+        }
+
+        public void loanOverdue(BorrowTransaction transaction) {
+            SwingUtilities.invokeLater(() -> {
+                updateStatus("Overdue: " + transaction.bookIsbn + " borrowed by " + transaction.userId + ", due " + transaction.dueDate);
+                transactionsModel.fireTableDataChanged();
+            });
+        }
+
+        public void holdFulfilled(Hold hold, BorrowTransaction transaction) {
+            SwingUtilities.invokeLater(() -> updateStatus("Hold fulfilled: " + hold.isbn + " lent to " + hold.userId));
+        }
+
+        public void holdExpired(Hold hold) {
+            SwingUtilities.invokeLater(() -> updateStatus("Hold expired: " + hold.userId + " on " + hold.isbn));
+        }
+
+        private void post(String key, Runnable update) {
+            synchronized (pending) {
+                if (pending.isEmpty()) SwingUtilities.invokeLater(this::drain);
+                pending.put(key, update);
+            }
+        }
+
+        private void drain() {
+            List<Runnable> updates;
+            synchronized (pending) {
+                updates = new ArrayList<>(pending.values());
+                pending.clear();
+            }
+            updates.forEach(Runnable::run);
         }
     }
 
@@ -0,0 +1,30 @@
+package step6;
+
+// Change notifications from SimpleLibrary; called on the mutating thread, so implementations must be quick
+public interface LibraryListener {
+    default void bookAdded(Book book) {}
+
+    default void bookStatusChanged(Book book) {}
+
+    default void userAdded(User user) {}
+
+    default void userChanged(User user) {}
+
+    default void transactionAdded(BorrowTransaction transaction) {}
+
+    default void transactionReturned(BorrowTransaction transaction) {}
+
+    // Called once per loan, on the timer thread or the caller of overdueLoans()
+    default void loanOverdue(BorrowTransaction transaction) {}
+
+    default void loanRenewed(BorrowTransaction transaction) {}
+
+    default void holdPlaced(Hold hold) {}
+
+    default void holdFulfilled(Hold hold, BorrowTransaction transaction) {}
+
+    default void holdCancelled(Hold hold) {}
+
+    // Called on the hold timer thread when the expiry comes first
+    default void holdExpired(Hold hold) {}
+}
@@ -0,0 +1,170 @@
+package step6;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Per-operation counters and latency histograms for a library, split into time spent in memory and in the store,
+// plus the store's failed writes and the depths of the library's queues. The library only calls in here while
+// metrics are enabled, so a disabled library pays one field read per operation.
+public class LibraryMetrics implements LibraryMetricsMXBean {
+    public enum Operation {
+        ADD_BOOK("addBook"), ADD_USER("addUser"), BORROW_BOOK("borrowBook"), RETURN_BOOK("returnBook"), LOAD("load");
+
+        public final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    // Counts, rejected calls (borrowBook or returnBook returning false) and latencies per operation
+    private final Map<Operation, LongAdder> counts = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder> rejected = new EnumMap<>(Operation.class);
+    private final Map<Operation, LatencyHistogram> memoryTime = new EnumMap<>(Operation.class);
+    private final Map<Operation, LatencyHistogram> storeTime = new EnumMap<>(Operation.class);
+    // Store time spent by the current thread inside the operation it is timing, taken out of its memory time
+    private final ThreadLocal<long[]> pendingStoreNanos = ThreadLocal.withInitial(() -> new long[1]);
+    private final SimpleLibrary library;
+    private ObjectName name;
+
+    public LibraryMetrics(SimpleLibrary library) {
+        this.library = library;
+        for (Operation op : Operation.values()) {
+            counts.put(op, new LongAdder());
+            rejected.put(op, new LongAdder());
+            memoryTime.put(op, new LatencyHistogram());
+            storeTime.put(op, new LatencyHistogram());
+        }
+    }
+
+    // Begins timing an operation on this thread; returns its start time for record
+    public long start() {
+        pendingStoreNanos.get()[0] = 0;
+        return System.nanoTime();
+    }
+
+    // Ends an operation begun with start; store calls made meanwhile were recorded with storeCall
+    public void record(Operation op, long start, boolean succeeded) {
+        long elapsed = System.nanoTime() - start;
+        long[] pending = pendingStoreNanos.get();
+        counts.get(op).increment();
+        if (!succeeded) rejected.get(op).increment();
+        memoryTime.get(op).record(elapsed - pending[0]);
+    }
+
+    // Times a store call that began at start on behalf of op
+    public void storeCall(Operation op, long start) {
+        long elapsed = System.nanoTime() - start;
+        storeTime.get(op).record(elapsed);
+        pendingStoreNanos.get()[0] += elapsed;
+    }
+
+    public LatencyHistogram memoryTime(Operation op) {
+        return memoryTime.get(op);
+    }
+
+    public LatencyHistogram storeTime(Operation op) {
+        return storeTime.get(op);
+    }
+
+    public long count(Operation op) {
+        return counts.get(op).sum();
+    }
+
+    // Pull API: every counter and gauge by name, latencies in microseconds, e.g. "borrowBook.store.p99Micros"
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        for (Operation op : Operation.values()) {
+            snapshot.put(op.label + ".count", counts.get(op).sum());
+            snapshot.put(op.label + ".rejected", rejected.get(op).sum());
+            put(snapshot, op.label + ".memory", memoryTime.get(op));
+            put(snapshot, op.label + ".store", storeTime.get(op));
+        }
+        snapshot.put("store.failedWrites", getFailedWrites());
+        snapshot.put("queue.writeBehind", getWriteQueueDepth());
+        snapshot.put("queue.holds", getHoldQueueDepth());
+        snapshot.put("queue.due", getDueQueueDepth());
+        snapshot.put("loans.overdue", getOverdueLoans());
+        return snapshot;
+    }
+
+    private static void put(Map<String, Long> snapshot, String prefix, LatencyHistogram histogram) {
+        long[] percentiles = histogram.percentilesNanos(0.50, 0.99, 0.999, 1.0);
+        snapshot.put(prefix + ".meanMicros", histogram.meanNanos() / 1000);
+        snapshot.put(prefix + ".p50Micros", percentiles[0] / 1000);
+        snapshot.put(prefix + ".p99Micros", percentiles[1] / 1000);
+        snapshot.put(prefix + ".p999Micros", percentiles[2] / 1000);
+        snapshot.put(prefix + ".maxMicros", percentiles[3] / 1000);
+    }
+
+    public long getFailedWrites() {
+        return library.store.failedWrites();
+    }
+
+    public long getWriteQueueDepth() {
+        return library.store.queueDepth();
+    }
+
+    public long getHoldQueueDepth() {
+        return library.holds.size();
+    }
+
+    public long getDueQueueDepth() {
+        return library.dueQueueSize();
+    }
+
+    public long getOverdueLoans() {
+        return library.overdueCount();
+    }
+
+    public void reset() {
+        for (Operation op : Operation.values()) {
+            counts.get(op).reset();
+            rejected.get(op).reset();
+            memoryTime.get(op).reset();
+            storeTime.get(op).reset();
+        }
+    }
+
+    // One line per operation for printStatus
+    public String summary() {
+        StringBuilder out = new StringBuilder();
+        for (Operation op : Operation.values()) {
+            long n = counts.get(op).sum();
+            if (n == 0) continue;
+            long[] memory = memoryTime.get(op).percentilesNanos(0.5, 0.99), store = storeTime.get(op).percentilesNanos(0.5, 0.99);
+            out.append(String.format("%n  %-10s %,d calls (%,d rejected), memory p50/p99 %d/%d us, store p50/p99 %d/%d us",
+                    op.label, n, rejected.get(op).sum(), memory[0] / 1000, memory[1] / 1000, store[0] / 1000, store[1] / 1000));
+        }
+        return String.format("Failed writes: %d | Write queue: %d | Holds: %d | Due: %d | Overdue: %d",
+                getFailedWrites(), getWriteQueueDepth(), getHoldQueueDepth(), getDueQueueDepth(), getOverdueLoans()) + out;
+    }
+
+    // Registration failures only cost the JMX view; the pull API keeps working
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName("step6:type=LibraryMetrics,name=library-" + instances.incrementAndGet());
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            name = null;
+        }
+    }
+
+    void unregister() {
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ignored) {}
+        name = null;
+    }
+}
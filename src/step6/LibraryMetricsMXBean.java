@@ -0,0 +1,20 @@
+package step6;
+
+import java.util.Map;
+
+// JMX view of LibraryMetrics, registered as step6:type=LibraryMetrics,name=<library>
+public interface LibraryMetricsMXBean {
+    Map<String, Long> getSnapshot();
+
+    long getFailedWrites();
+
+    long getWriteQueueDepth();
+
+    long getHoldQueueDepth();
+
+    long getDueQueueDepth();
+
+    long getOverdueLoans();
+
+    void reset();
+}
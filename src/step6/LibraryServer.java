@@ -0,0 +1,250 @@
+package step6;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// HTTP/JSON front end over one library, on the JDK's built-in server with one virtual thread per request.
+// Connections are HTTP/1.1 keep-alive; small replies carry a Content-Length, search results stream as chunks.
+// At most maxConcurrent requests run at once; others wait up to queueTimeoutMillis and then get 503.
+// A handler failure is answered with 500 while the reply has not started, and drops the connection once it has.
+// main turns on TCP_NODELAY (-Dsun.net.httpserver.nodelay=true); embedders set it themselves, before the first server.
+//   POST /books   {"isbn", "title", "author", "copies"}     POST /users  {"user_id", "name"}
+//   POST /borrow  {"isbn", "user_id"}                       POST /return {"isbn", "user_id"}
+//   GET  /search?q=tolk+hob&limit=20                        GET  /status
+public class LibraryServer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_MAX_CONCURRENT = 1024;
+    public static final int SEARCH_LIMIT = 1000;
+
+    private final SimpleLibrary library;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore permits;
+    public long queueTimeoutMillis = 1000;
+
+    // Binds to host and port (0 picks a free port); 127.0.0.1 keeps the server on loopback
+    public LibraryServer(SimpleLibrary library, String host, int port, int maxConcurrent) throws IOException {
+        this.library = library;
+        this.permits = new Semaphore(maxConcurrent);
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.setExecutor(executor);
+        server.createContext("/books", limited(post(this::addBook)));
+        server.createContext("/users", limited(post(this::addUser)));
+        server.createContext("/borrow", limited(post(this::borrow)));
+        server.createContext("/return", limited(post(this::giveBack)));
+        server.createContext("/search", limited(get(this::search)));
+        server.createContext("/status", limited(get(this::status)));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    // Waits up to delaySeconds for requests in flight
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private interface Endpoint {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private HttpHandler limited(Endpoint endpoint) {
+        return exchange -> {
+            try {
+                boolean admitted = false;
+                try {
+                    admitted = permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (!admitted) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    reply(exchange, 503, Json.object("error", "Server busy"));
+                    return;
+                }
+                try {
+                    endpoint.handle(exchange);
+                } catch (IllegalArgumentException e) {
+                    reply(exchange, 400, Json.object("error", e.getMessage()));
+                } catch (RuntimeException e) {
+                    System.err.println("Request " + exchange.getRequestURI() + " failed: " + e);
+                    reply(exchange, 500, Json.object("error", "Internal server error"));
+                } finally {
+                    permits.release();
+                }
+            } catch (IOException | RuntimeException e) {
+                // Headers may already be out; closing drops the connection so the client sees the failure
+                exchange.close();
+            }
+        };
+    }
+
+    private static Endpoint post(Endpoint endpoint) {
+        return exchange -> {
+            if (!exchange.getRequestMethod().equals("POST")) reply(exchange, 405, Json.object("error", "Use POST"));
+            else endpoint.handle(exchange);
+        };
+    }
+
+    private static Endpoint get(Endpoint endpoint) {
+        return exchange -> {
+            if (!exchange.getRequestMethod().equals("GET")) reply(exchange, 405, Json.object("error", "Use GET"));
+            else endpoint.handle(exchange);
+        };
+    }
+
+    private void addBook(HttpExchange exchange) throws IOException {
+        Map<String, String> body = body(exchange);
+        String copies = body.get("copies");
+        int count;
+        try {
+            count = copies == null ? 1 : Integer.parseInt(copies);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("copies is not a number");
+        }
+        if (count < 1) throw new IllegalArgumentException("copies must be at least 1");
+        Book book = new Book(required(body, "isbn"), required(body, "title"), required(body, "author"), count);
+        library.addBook(book);
+        reply(exchange, 201, bookJson(book));
+    }
+
+    private void addUser(HttpExchange exchange) throws IOException {
+        Map<String, String> body = body(exchange);
+        User user = new User(required(body, "user_id"), required(body, "name"));
+        library.addUser(user);
+        reply(exchange, 201, Json.object("user_id", user.userId, "name", user.name));
+    }
+
+    private void borrow(HttpExchange exchange) throws IOException {
+        Map<String, String> body = body(exchange);
+        boolean borrowed = library.borrowBook(required(body, "isbn"), required(body, "user_id"));
+        reply(exchange, borrowed ? 200 : 409, "{\"borrowed\":" + borrowed + "}");
+    }
+
+    private void giveBack(HttpExchange exchange) throws IOException {
+        Map<String, String> body = body(exchange);
+        boolean returned = library.returnBook(required(body, "isbn"), required(body, "user_id"));
+        reply(exchange, returned ? 200 : 409, "{\"returned\":" + returned + "}");
+    }
+
+    // Results are encoded one book at a time onto a chunked body, so a large page is never built in memory
+    private void search(HttpExchange exchange) throws IOException {
+        Map<String, String> query = query(exchange);
+        String q = query.getOrDefault("q", "");
+        int limit;
+        try {
+            limit = Math.min(SEARCH_LIMIT, Integer.parseInt(query.getOrDefault("limit", "20")));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("limit is not a number");
+        }
+        List<Book> results = library.search(q, limit);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, 0);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192)) {
+            out.write('[');
+            for (int i = 0; i < results.size(); i++) {
+                if (i > 0) out.write(',');
+                out.write(bookJson(results.get(i)));
+            }
+            out.write(']');
+        }
+    }
+
+    private void status(HttpExchange exchange) throws IOException {
+        StringBuilder json = new StringBuilder("{")
+                .append("\"store\":").append(Json.quote(library.store.name()))
+                .append(",\"books\":").append(library.books.size())
+                .append(",\"users\":").append(library.users.size())
+                .append(",\"transactions\":").append(library.getTransactionCount())
+                .append(",\"readyMillis\":").append(library.readyMillis);
+        LibraryMetrics metrics = library.getMetrics();
+        if (metrics != null) {
+            json.append(",\"metrics\":{");
+            boolean first = true;
+            for (Map.Entry<String, Long> entry : metrics.getSnapshot().entrySet()) {
+                if (!first) json.append(',');
+                first = false;
+                json.append(Json.quote(entry.getKey())).append(':').append(entry.getValue());
+            }
+            json.append('}');
+        }
+        reply(exchange, 200, json.append('}').toString());
+    }
+
+    private static String bookJson(Book book) {
+        return "{\"isbn\":" + Json.quote(book.isbn) + ",\"title\":" + Json.quote(book.title) + ",\"author\":" + Json.quote(book.author)
+                + ",\"copies\":" + book.copies + ",\"available\":" + book.availableCopies.get() + "}";
+    }
+
+    private static Map<String, String> body(HttpExchange exchange) throws IOException {
+        try (PushbackReader in = new PushbackReader(new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)), 2)) {
+            Map<String, String> body = Json.readObject(in);
+            if (body == null) throw new IllegalArgumentException("Missing request body");
+            return body;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed JSON: " + e.getMessage());
+        }
+    }
+
+    private static String required(Map<String, String> body, String field) {
+        String value = body.get(field);
+        if (value == null || value.trim().isEmpty()) throw new IllegalArgumentException("Missing " + field);
+        return value.trim();
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) return params;
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq), value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    // Fixed-length replies keep the connection open for the next request
+    private static void reply(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // java step6.LibraryServer; -Dlibrary.server.host (default 127.0.0.1), -Dlibrary.server.port (8080) and
+    // -Dlibrary.server.maxConcurrent (1024) configure the server, the library comes from the usual system properties
+    public static void main(String[] args) throws IOException {
+        // Without TCP_NODELAY, small keep-alive replies wait on delayed ACKs for ~40 ms each; the JDK server
+        // reads this once, when its first instance is created
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) System.setProperty("sun.net.httpserver.nodelay", "true");
+        SimpleLibrary library = new SimpleLibrary();
+        LibraryServer server = new LibraryServer(library, System.getProperty("library.server.host", "127.0.0.1"),
+                Integer.getInteger("library.server.port", DEFAULT_PORT), Integer.getInteger("library.server.maxConcurrent", DEFAULT_MAX_CONCURRENT));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop(1);
+            library.close();
+        }));
+        server.start();
+        System.out.println("Library server on http://" + System.getProperty("library.server.host", "127.0.0.1") + ":" + server.getPort());
+    }
+}
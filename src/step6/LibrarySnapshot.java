@@ -0,0 +1,127 @@
+package step6;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Compact binary image of books, users and every transaction, returned ones included, plus the journal position it covers.
+// It is written while the library keeps running; every journal event after that position is
+// replayed on top, and because each event sets absolute state the overlap is harmless.
+// Snapshots written before history was included hold only active loans and read back with hasHistory false.
+public class LibrarySnapshot {
+    private static final int MAGIC = 0x4C494255, MAGIC_WITH_HISTORY = 0x4C494248;
+    private static final byte END = 0, BOOK = 1, USER = 2, LOAN = 3, TRANSACTION = 4;
+
+    public final int segment;
+    public final int offset;
+    public final int nextTransaction;
+    public final Map<String, Book> books = new LinkedHashMap<>();
+    public final Map<String, User> users = new LinkedHashMap<>();
+    // In history order; only the active loans when hasHistory is false
+    public final Map<String, BorrowTransaction> transactions = new LinkedHashMap<>();
+    public final boolean hasHistory;
+
+    private LibrarySnapshot(boolean hasHistory, int segment, int offset, int nextTransaction) {
+        this.hasHistory = hasHistory;
+        this.segment = segment;
+        this.offset = offset;
+        this.nextTransaction = nextTransaction;
+    }
+
+    // Written to a temporary file and renamed, so a crash never leaves a half-written snapshot in place
+    public static void write(Path file, SimpleLibrary library, int segment, int offset) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(Files.newOutputStream(temp), crc), 1 << 16))) {
+            out.writeInt(MAGIC_WITH_HISTORY);
+            out.writeInt(segment);
+            out.writeInt(offset);
+            out.writeInt(library.transactionCounter.get());
+            for (Book book : library.books.values()) {
+                out.writeByte(BOOK);
+                out.writeUTF(book.isbn);
+                out.writeUTF(book.title);
+                out.writeUTF(book.author);
+                out.writeInt(book.copies);
+            }
+            for (User user : library.users.values()) {
+                out.writeByte(USER);
+                out.writeUTF(user.userId);
+                out.writeUTF(user.name);
+            }
+            IOException[] failure = new IOException[1];
+            library.forEachTransaction(t -> {
+                if (failure[0] != null) return;
+                try {
+                    out.writeByte(TRANSACTION);
+                    out.writeUTF(t.transactionId);
+                    out.writeUTF(t.bookIsbn);
+                    out.writeUTF(t.userId);
+                    out.writeLong(t.borrowDate.getTime());
+                    out.writeLong(t.dueDate == null ? 0 : t.dueDate.getTime());
+                    // Read once: the loan may be returned while the snapshot is being written
+                    boolean returned = t.isReturned;
+                    Date returnDate = t.returnDate;
+                    out.writeBoolean(returned);
+                    if (returned) out.writeLong(returnDate == null ? 0 : returnDate.getTime());
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) throw failure[0];
+            out.writeByte(END);
+            out.flush();
+            out.writeLong(crc.getValue());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Returns null for a missing, truncated or corrupt file
+    public static LibrarySnapshot read(Path file) {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16), crc))) {
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_WITH_HISTORY) return null;
+            LibrarySnapshot snapshot = new LibrarySnapshot(magic == MAGIC_WITH_HISTORY, in.readInt(), in.readInt(), in.readInt());
+            for (byte tag = in.readByte(); tag != END; tag = in.readByte()) {
+                switch (tag) {
+                    case BOOK:
+                        Book book = new Book(in.readUTF(), in.readUTF(), in.readUTF(), in.readInt());
+                        snapshot.books.put(book.isbn, book);
+                        break;
+                    case USER:
+                        String userId = in.readUTF();
+                        snapshot.users.put(userId, new User(userId, in.readUTF()));
+                        break;
+                    case LOAN:
+                        String transactionId = in.readUTF();
+                        BorrowTransaction loan = new BorrowTransaction(transactionId, in.readUTF(), in.readUTF(), new Date(in.readLong()));
+                        loan.dueDate = new Date(in.readLong());
+                        snapshot.transactions.put(transactionId, loan);
+                        break;
+                    case TRANSACTION:
+                        String id = in.readUTF();
+                        BorrowTransaction t = new BorrowTransaction(id, in.readUTF(), in.readUTF(), new Date(in.readLong()));
+                        long dueTime = in.readLong();
+                        if (dueTime != 0) t.dueDate = new Date(dueTime);
+                        if (in.readBoolean()) {
+                            t.markAsReturned();
+                            long returnTime = in.readLong();
+                            if (returnTime != 0) t.returnDate = new Date(returnTime);
+                        }
+                        snapshot.transactions.put(id, t);
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            long expected = crc.getValue();
+            return in.readLong() == expected ? snapshot : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package step6;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+public interface LibraryStore {
+    void saveBook(Book book);
+
+    void saveUser(User user);
+
+    void saveTransaction(BorrowTransaction transaction);
+
+    void markReturned(BorrowTransaction transaction);
+
+    // A renewal moved the loan's due date
+    void markRenewed(BorrowTransaction transaction);
+
+    void load(SimpleLibrary library);
+
+    // Bulk writes for imports; they return once the rows are stored and fail with an unchecked exception otherwise.
+    // Rows already present are skipped, so a batch can be written again after an interrupted import; the result counts the rest.
+    default int saveBooks(List<Book> books) {
+        for (Book book : books) saveBook(book);
+        return books.size();
+    }
+
+    default int saveUsers(List<User> users) {
+        for (User user : users) saveUser(user);
+        return users.size();
+    }
+
+    default int saveTransactions(List<BorrowTransaction> transactions) {
+        for (BorrowTransaction t : transactions) {
+            saveTransaction(t);
+            if (t.isReturned) markReturned(t);
+        }
+        return transactions.size();
+    }
+
+    // Every stored transaction in a stable order (insertion order for the database), for exports from stores that load history lazily
+    default void forEachTransaction(Consumer<BorrowTransaction> action) {}
+
+    String name();
+
+    // True when load() leaves returned transactions in the store, to be read through findTransactions
+    default boolean loadsHistoryLazily() {
+        return false;
+    }
+
+    // Null filters match everything; from is inclusive and to exclusive on the borrow date
+    default List<BorrowTransaction> findTransactions(String userId, String isbn, Date from, Date to, int offset, int limit) {
+        return Collections.emptyList();
+    }
+
+    default BorrowTransaction findTransaction(String transactionId) {
+        return null;
+    }
+
+    default long countTransactions() {
+        return 0;
+    }
+
+    // Writes the store dropped after an error instead of throwing, for metrics
+    default long failedWrites() {
+        return 0;
+    }
+
+    // Writes accepted but not yet handed to the backend
+    default int queueDepth() {
+        return 0;
+    }
+
+    default void flush() {}
+
+    default void close() {}
+
+    // Picks the backend from library.store (jdbc, journal, file or memory); a JDBC backend that cannot connect falls back to memory
+    static LibraryStore fromConfig(Properties config) {
+        String type = config.getProperty("library.store", "jdbc");
+        switch (type) {
+            case "memory":
+                return new MemoryStore();
+            case "file":
+                return new FileStore(config.getProperty("library.file.path", "library-data.log"));
+            case "journal":
+                JournalStore journal = new JournalStore(config.getProperty("library.journal.dir", "library-journal"),
+                        Integer.parseInt(config.getProperty("library.journal.segmentSize", String.valueOf(JournalStore.DEFAULT_SEGMENT_SIZE))),
+                        Long.parseLong(config.getProperty("library.journal.forceIntervalMillis", "10")));
+                journal.snapshotIntervalMillis = Long.parseLong(config.getProperty("library.journal.snapshotIntervalMillis", "60000"));
+                return journal;
+            case "jdbc":
+                try {
+                    JdbcStore store = new JdbcStore(
+                            config.getProperty("library.jdbc.url", JdbcStore.DEFAULT_URL),
+                            config.getProperty("library.jdbc.user", "root"),
+                            config.getProperty("library.jdbc.password", "pass"),
+                            Integer.parseInt(config.getProperty("library.pool.size", "8")));
+                    store.fetchSize = Integer.parseInt(config.getProperty("library.jdbc.fetchSize", "1000"));
+                    int batchSize = Integer.parseInt(config.getProperty("library.writeBehind.batchSize", "0"));
+                    if (batchSize > 0) store.enableWriteBehind(
+                            Integer.parseInt(config.getProperty("library.writeBehind.queueCapacity", "10000")),
+                            batchSize,
+                            Long.parseLong(config.getProperty("library.writeBehind.flushIntervalMillis", "50")));
+                    return store;
+                } catch (Exception e) {
+                    System.err.println("Database unavailable (" + e.getMessage() + "), using memory storage");
+                    return new MemoryStore();
+                }
+            default:
+                throw new IllegalArgumentException("Unknown library.store: " + type);
+        }
+    }
+}
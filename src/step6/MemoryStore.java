@@ -0,0 +1,19 @@
+package step6;
+
+public class MemoryStore implements LibraryStore {
+    public void saveBook(Book book) {}
+
+    public void saveUser(User user) {}
+
+    public void saveTransaction(BorrowTransaction transaction) {}
+
+    public void markReturned(BorrowTransaction transaction) {}
+
+    public void markRenewed(BorrowTransaction transaction) {}
+
+    public void load(SimpleLibrary library) {}
+
+    public String name() {
+        return "Memory";
+    }
+}
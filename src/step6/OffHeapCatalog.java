@@ -0,0 +1,247 @@
+package step6;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Book catalog kept in direct memory, so the collector never traces it and pauses do not grow with the catalog.
+// Each book is a fixed 40-byte record [int hash][int available][long isbn][long title][long author][int copies][pad]
+// whose string fields point into an append-only arena of [int length][UTF-8 bytes]; an
+// open-addressing table of record numbers indexes the ISBNs. Lookups hand out short-lived Book views, so copies
+// are taken and returned through checkOut/checkIn, which update the record atomically in place.
+// Books cannot be removed; replacing one keeps its lent copies out and leaves its old strings in the arena.
+public class OffHeapCatalog extends AbstractMap<String, Book> {
+    private static final int RECORD = 40;
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final int RECORDS_PER_SLAB = 1 << 20;
+    private static final int ARENA_SLAB = 64 << 20;
+    private static final int INITIAL_SLOTS = 1 << 16;
+
+    private final List<ByteBuffer> recordSlabs = new ArrayList<>();
+    private final List<ByteBuffer> arenaSlabs = new ArrayList<>();
+    private long arenaPosition;
+    // Slot values are record number + 1, so zero means empty; kept at most half full
+    private ByteBuffer index = ByteBuffer.allocateDirect(INITIAL_SLOTS * 4);
+    private int mask = INITIAL_SLOTS - 1;
+    private int size;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public Book get(Object key) {
+        if (!(key instanceof String)) return null;
+        lock.readLock().lock();
+        try {
+            int record = find((String) key);
+            return record < 0 ? null : view(record, (String) key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        if (!(key instanceof String)) return false;
+        lock.readLock().lock();
+        try {
+            return find((String) key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Returns null rather than the previous book, so a replace does not pay for decoding it
+    public Book put(String isbn, Book book) {
+        lock.writeLock().lock();
+        try {
+            int record = find(isbn);
+            boolean added = record < 0;
+            if (added) {
+                if ((size + 1) * 2 > mask + 1) resize();
+                record = size++;
+                if (record % RECORDS_PER_SLAB == 0) recordSlabs.add(ByteBuffer.allocateDirect(RECORDS_PER_SLAB * RECORD));
+            }
+            ByteBuffer slab = recordSlabs.get(record / RECORDS_PER_SLAB);
+            int at = (record % RECORDS_PER_SLAB) * RECORD;
+            if (added) {
+                slab.putInt(at, hash(isbn));
+                slab.putLong(at + 8, store(isbn));
+                insert(record, hash(isbn));
+            }
+            // Copies lent from the book being replaced stay out; checkOut and checkIn cannot run under the write lock
+            int available = added ? book.availableCopies.get()
+                    : Math.max(0, book.copies - (slab.getInt(at + 32) - (int) INT.getVolatile(slab, at + 4)));
+            slab.putLong(at + 16, store(book.title));
+            slab.putLong(at + 24, store(book.author));
+            slab.putInt(at + 32, book.copies);
+            INT.setVolatile(slab, at + 4, available);
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Same contract as Book.checkOut, applied to the record; the read lock only keeps the slabs from moving
+    public boolean checkOut(String isbn) {
+        lock.readLock().lock();
+        try {
+            int record = find(isbn);
+            if (record < 0) return false;
+            ByteBuffer slab = recordSlabs.get(record / RECORDS_PER_SLAB);
+            int at = (record % RECORDS_PER_SLAB) * RECORD;
+            while (true) {
+                int available = (int) INT.getVolatile(slab, at + 4);
+                if (available <= 0) return false;
+                if (INT.compareAndSet(slab, at + 4, available, available - 1)) return true;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void checkIn(String isbn) {
+        lock.readLock().lock();
+        try {
+            int record = find(isbn);
+            if (record < 0) return;
+            ByteBuffer slab = recordSlabs.get(record / RECORDS_PER_SLAB);
+            int at = (record % RECORDS_PER_SLAB) * RECORD;
+            int copies = slab.getInt(at + 32);
+            while (true) {
+                int available = (int) INT.getVolatile(slab, at + 4);
+                if (available >= copies) return;
+                if (INT.compareAndSet(slab, at + 4, available, available + 1)) return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Direct memory reserved by records, arena and index
+    public long offHeapBytes() {
+        lock.readLock().lock();
+        try {
+            return (long) recordSlabs.size() * RECORDS_PER_SLAB * RECORD + (long) arenaSlabs.size() * ARENA_SLAB + index.capacity();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Insertion order; each entry decodes a fresh view
+    public Set<Map.Entry<String, Book>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Book>>() {
+            public int size() {
+                return OffHeapCatalog.this.size();
+            }
+
+            public Iterator<Map.Entry<String, Book>> iterator() {
+                return new Iterator<Map.Entry<String, Book>>() {
+                    int next = 0;
+
+                    public boolean hasNext() {
+                        return next < OffHeapCatalog.this.size();
+                    }
+
+                    public Map.Entry<String, Book> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        lock.readLock().lock();
+                        try {
+                            Book book = view(next++, null);
+                            return new AbstractMap.SimpleImmutableEntry<>(book.isbn, book);
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                    }
+                };
+            }
+        };
+    }
+
+    private int find(String isbn) {
+        int hash = hash(isbn);
+        byte[] key = null;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int record = index.getInt(slot * 4) - 1;
+            if (record < 0) return -1;
+            ByteBuffer slab = recordSlabs.get(record / RECORDS_PER_SLAB);
+            int at = (record % RECORDS_PER_SLAB) * RECORD;
+            if (slab.getInt(at) != hash) continue;
+            if (key == null) key = isbn.getBytes(StandardCharsets.UTF_8);
+            if (equals(slab.getLong(at + 8), key)) return record;
+        }
+    }
+
+    private void insert(int record, int hash) {
+        int slot = hash & mask;
+        while (index.getInt(slot * 4) != 0) slot = (slot + 1) & mask;
+        index.putInt(slot * 4, record + 1);
+    }
+
+    private void resize() {
+        int slots = (mask + 1) * 2;
+        index = ByteBuffer.allocateDirect(slots * 4);
+        mask = slots - 1;
+        for (int record = 0; record < size; record++) {
+            insert(record, recordSlabs.get(record / RECORDS_PER_SLAB).getInt((record % RECORDS_PER_SLAB) * RECORD));
+        }
+    }
+
+    // The caller's key doubles as the view's ISBN, so a lookup only decodes title and author
+    private Book view(int record, String isbn) {
+        ByteBuffer slab = recordSlabs.get(record / RECORDS_PER_SLAB);
+        int at = (record % RECORDS_PER_SLAB) * RECORD;
+        Book book = new Book(isbn != null ? isbn : load(slab.getLong(at + 8)), load(slab.getLong(at + 16)), load(slab.getLong(at + 24)),
+                slab.getInt(at + 32));
+        book.availableCopies.set((int) INT.getVolatile(slab, at + 4));
+        return book;
+    }
+
+    private long store(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (4 + bytes.length > ARENA_SLAB) throw new IllegalArgumentException("String larger than an arena slab");
+        if (arenaPosition / ARENA_SLAB >= arenaSlabs.size() || arenaPosition % ARENA_SLAB + 4 + bytes.length > ARENA_SLAB) {
+            arenaSlabs.add(ByteBuffer.allocateDirect(ARENA_SLAB));
+            arenaPosition = (long) (arenaSlabs.size() - 1) * ARENA_SLAB;
+        }
+        long ref = arenaPosition;
+        ByteBuffer slab = arenaSlabs.get((int) (ref / ARENA_SLAB));
+        int at = (int) (ref % ARENA_SLAB);
+        slab.putInt(at, bytes.length);
+        slab.put(at + 4, bytes);
+        arenaPosition += 4 + bytes.length;
+        return ref;
+    }
+
+    private String load(long ref) {
+        ByteBuffer slab = arenaSlabs.get((int) (ref / ARENA_SLAB));
+        int at = (int) (ref % ARENA_SLAB);
+        byte[] bytes = new byte[slab.getInt(at)];
+        slab.get(at + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean equals(long ref, byte[] key) {
+        ByteBuffer slab = arenaSlabs.get((int) (ref / ARENA_SLAB));
+        int at = (int) (ref % ARENA_SLAB);
+        if (slab.getInt(at) != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(at + 4 + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,91 @@
+package step6;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+// Table model over the library's own objects with a key index, so one changed row is one O(1) update event
+public class RowListModel<T> extends AbstractTableModel {
+    private final String[] columns;
+    private final Function<T, String> key;
+    private final BiFunction<T, Integer, Object> value;
+    private List<T> rows = new ArrayList<>();
+    private Map<String, Integer> rowByKey = new HashMap<>();
+
+    // Rows and their key index, built on any thread and swapped in on the EDT
+    public static class Rows<T> {
+        final List<T> list;
+        final Map<String, Integer> rowByKey;
+
+        Rows(List<T> list, Map<String, Integer> rowByKey) {
+            this.list = list;
+            this.rowByKey = rowByKey;
+        }
+    }
+
+    public RowListModel(String[] columns, Function<T, String> key, BiFunction<T, Integer, Object> value) {
+        this.columns = columns;
+        this.key = key;
+        this.value = value;
+    }
+
+    public void setRows(Collection<T> items) {
+        setRows(build(items));
+    }
+
+    // Safe off the EDT: touches nothing but the items and the key function
+    public Rows<T> build(Collection<T> items) {
+        List<T> list = new ArrayList<>(items.size());
+        Map<String, Integer> byKey = new HashMap<>(items.size() * 2);
+        for (T item : items) {
+            byKey.put(key.apply(item), list.size());
+            list.add(item);
+        }
+        return new Rows<>(list, byKey);
+    }
+
+    public void setRows(Rows<T> built) {
+        rows = built.list;
+        rowByKey = built.rowByKey;
+        fireTableDataChanged();
+    }
+
+    // Replaces the row with the same key, otherwise appends
+    public void put(T item) {
+        Integer row = rowByKey.get(key.apply(item));
+        if (row != null) {
+            rows.set(row, item);
+            fireTableRowsUpdated(row, row);
+        } else {
+            rowByKey.put(key.apply(item), rows.size());
+            rows.add(item);
+            fireTableRowsInserted(rows.size() - 1, rows.size() - 1);
+        }
+    }
+
+    // Stores the item as well, since it may be a fresh copy (e.g. a book decoded from the off-heap catalog)
+    public void changed(T item) {
+        Integer row = rowByKey.get(key.apply(item));
+        if (row != null) {
+            rows.set(row, item);
+            fireTableRowsUpdated(row, row);
+        }
+    }
+
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getColumnName(int column) {
+        return columns[column];
+    }
+
+    public Object getValueAt(int row, int column) {
+        return value.apply(rows.get(row), column);
+    }
+}
@@ -0,0 +1,199 @@
+package step6;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Inverted index from lower-cased title/author tokens to ISBNs; the sorted map gives prefix matching as a range scan
+public class SearchIndex {
+    // Matches ranked per query, and books examined to find them, so a one-letter prefix cannot turn into a full catalog scan
+    public static final int MAX_CANDIDATES = 2_000;
+    public static final int MAX_EXAMINED = 4 * MAX_CANDIDATES;
+    private static final int IN_TITLE = 1, IN_AUTHOR = 2;
+    // Prefixes up to this length keep an exact posting count, so short, broad terms are sized without a range scan
+    private static final int COUNTED_PREFIX = 3;
+
+    private final ConcurrentSkipListMap<String, Map<String, Integer>> postings = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> prefixPostings = new ConcurrentHashMap<>();
+    private final Map<String, Book> indexed;
+    private final boolean ownsBooks;
+
+    public SearchIndex() {
+        this.indexed = new ConcurrentHashMap<>();
+        this.ownsBooks = true;
+    }
+
+    // Resolves hits through the caller's catalog instead of keeping its own Book references;
+    // the caller then removes a book it replaces before adding the new one
+    public SearchIndex(Map<String, Book> catalog) {
+        this.indexed = catalog;
+        this.ownsBooks = false;
+    }
+
+    public void add(Book book) {
+        if (ownsBooks) {
+            Book previous = indexed.put(book.isbn, book);
+            if (previous != null) removeTokens(previous);
+        }
+        for (Map.Entry<String, Integer> token : tokens(book).entrySet()) {
+            postings.compute(token.getKey(), (k, isbns) -> {
+                if (isbns == null) isbns = new ConcurrentHashMap<>();
+                if (isbns.put(book.isbn, token.getValue()) == null) countPostings(token.getKey(), 1);
+                return isbns;
+            });
+        }
+    }
+
+    public void remove(Book book) {
+        if (!ownsBooks || indexed.remove(book.isbn, book)) removeTokens(book);
+    }
+
+    public int size() {
+        return indexed.size();
+    }
+
+    // Every query term must prefix-match a title or author token; best matches come first
+    public List<Book> search(String query, int limit) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty() || limit <= 0) return Collections.emptyList();
+
+        // The term with the fewest postings drives the scan; the others are checked per candidate. Short terms have exact
+        // counts; longer ones are counted up to MAX_EXAMINED, past which ties go to the smaller COUNTED_PREFIX count.
+        String driver = null;
+        long driverCount = Long.MAX_VALUE, driverPrefix = Long.MAX_VALUE;
+        for (String term : terms) {
+            long count = postingCount(term), prefix = term.length() <= COUNTED_PREFIX ? count : prefixCount(term.substring(0, COUNTED_PREFIX));
+            if (count < driverCount || (count == driverCount && prefix < driverPrefix)) {
+                driver = term;
+                driverCount = count;
+                driverPrefix = prefix;
+            }
+        }
+        if (driverCount == 0) return Collections.emptyList();
+
+        // Candidates come from the driving term, exact matches first, and each is checked against every term before it counts.
+        // The cap applies to books that matched all terms, so a narrow second term cannot lose matches the driver happened
+        // to list late. MAX_EXAMINED bounds the books looked at, so broad terms with a small intersection stay bounded too.
+        int cap = Math.max(limit, MAX_CANDIDATES);
+        Set<String> candidates = new LinkedHashSet<>();
+        Map<String, Integer> exact = postings.get(driver);
+        if (exact != null) collect(candidates, exact.keySet());
+        for (Map.Entry<String, Map<String, Integer>> entry : prefixRange(driver).entrySet()) {
+            if (candidates.size() >= MAX_EXAMINED) break;
+            if (!entry.getKey().equals(driver)) collect(candidates, entry.getValue().keySet());
+        }
+
+        PriorityQueue<Hit> best = new PriorityQueue<>(Comparator.comparingInt((Hit h) -> h.score).thenComparing(h -> h.book.title, Comparator.reverseOrder()));
+        int matched = 0;
+        for (String isbn : candidates) {
+            if (matched >= cap) break;
+            Book book = indexed.get(isbn);
+            if (book == null) continue;
+            int score = score(book, terms);
+            if (score < 0) continue;
+            matched++;
+            best.add(new Hit(book, score));
+            if (best.size() > limit) best.poll();
+        }
+
+        List<Book> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) result.add(best.poll().book);
+        Collections.reverse(result);
+        return result;
+    }
+
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) return tokens;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) start = i;
+            else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static class Hit {
+        final Book book;
+        final int score;
+
+        Hit(Book book, int score) {
+            this.book = book;
+            this.score = score;
+        }
+    }
+
+    private long postingCount(String term) {
+        if (term.length() <= COUNTED_PREFIX) return prefixCount(term);
+        long count = 0;
+        for (Map<String, Integer> isbns : prefixRange(term).values()) {
+            count += isbns.size();
+            if (count >= MAX_EXAMINED) return MAX_EXAMINED;
+        }
+        return count;
+    }
+
+    private long prefixCount(String prefix) {
+        LongAdder count = prefixPostings.get(prefix);
+        return count == null ? 0 : count.sum();
+    }
+
+    private void countPostings(String token, int delta) {
+        for (int length = 1; length <= Math.min(COUNTED_PREFIX, token.length()); length++) {
+            prefixPostings.computeIfAbsent(token.substring(0, length), k -> new LongAdder()).add(delta);
+        }
+    }
+
+    private static void collect(Set<String> candidates, Set<String> isbns) {
+        for (String isbn : isbns) {
+            if (candidates.size() >= MAX_EXAMINED) return;
+            candidates.add(isbn);
+        }
+    }
+
+    // Title matches outrank author matches and whole-word matches outrank prefixes; -1 means some term did not match
+    private static int score(Book book, List<String> terms) {
+        List<String> title = tokenize(book.title), author = tokenize(book.author);
+        int total = 0;
+        for (String term : terms) {
+            int best = Math.max(match(title, term, 4, 3), match(author, term, 2, 1));
+            if (best == 0) return -1;
+            total += best;
+        }
+        return total;
+    }
+
+    private static int match(List<String> tokens, String term, int exactScore, int prefixScore) {
+        int best = 0;
+        for (String token : tokens) {
+            if (token.equals(term)) return exactScore;
+            if (token.startsWith(term)) best = prefixScore;
+        }
+        return best;
+    }
+
+    private NavigableMap<String, Map<String, Integer>> prefixRange(String prefix) {
+        return postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private Map<String, Integer> tokens(Book book) {
+        Map<String, Integer> tokens = new HashMap<>();
+        for (String token : tokenize(book.title)) tokens.merge(token, IN_TITLE, (a, b) -> a | b);
+        for (String token : tokenize(book.author)) tokens.merge(token, IN_AUTHOR, (a, b) -> a | b);
+        return tokens;
+    }
+
+    private void removeTokens(Book book) {
+        for (String token : tokens(book).keySet()) {
+            postings.computeIfPresent(token, (k, isbns) -> {
+                if (isbns.remove(book.isbn) != null) countPostings(token, -1);
+                return isbns.isEmpty() ? null : isbns;
+            });
+        }
+    }
+}
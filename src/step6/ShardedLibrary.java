@@ -0,0 +1,273 @@
+package step6;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+// Books are partitioned by ISBN hash across shards, each a SimpleLibrary with its own maps and store; shard i of n
+// hands out transaction IDs T(i+1), T(i+1+n), ... so IDs never collide. Every mutation of a shard runs on that
+// shard's single writer thread, so shards never contend with each other and a shard's own locks are never contended.
+// Users are copied to every shard. The loan limit spans shards, so a borrow first reserves one of the user's
+// MAX_BOOKS_LIMIT slots here and gives it back if the shard refuses; a return frees it.
+// Holds are not routed here: a hand-off would lend outside the reservation.
+public class ShardedLibrary {
+    public static final int QUEUE_CAPACITY = 10_000;
+
+    private final SimpleLibrary[] shards;
+    private final ShardLoop[] loops;
+    // Loans held or being made per user, across all shards
+    private final Map<String, AtomicInteger> loansByUser = new ConcurrentHashMap<>();
+
+    public ShardedLibrary(int shardCount, IntFunction<LibraryStore> stores) {
+        shards = new SimpleLibrary[shardCount];
+        loops = new ShardLoop[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new SimpleLibrary(stores.apply(i));
+            shards[i].useTransactionIds(i + 1, shardCount);
+            loops[i] = new ShardLoop("library-shard-" + i);
+        }
+        for (SimpleLibrary shard : shards) {
+            shard.activeLoansByUser.forEach((userId, loans) -> {
+                if (!loans.isEmpty()) reservations(userId).addAndGet(loans.size());
+            });
+        }
+    }
+
+    // library.shards shards, each on the configured backend with its own journal directory, log file or database
+    // (library.jdbc.url.<i> per shard)
+    public static ShardedLibrary fromConfig(Properties config) {
+        int count = Integer.parseInt(config.getProperty("library.shards", "4"));
+        return new ShardedLibrary(count, i -> {
+            Properties shard = new Properties();
+            shard.putAll(config);
+            shard.setProperty("library.journal.dir", config.getProperty("library.journal.dir", "library-journal") + "/shard-" + i);
+            shard.setProperty("library.file.path", config.getProperty("library.file.path", "library-data.log") + ".shard-" + i);
+            String url = config.getProperty("library.jdbc.url." + i);
+            if (url != null) shard.setProperty("library.jdbc.url", url);
+            else if (config.getProperty("library.store", "jdbc").equals("jdbc")) {
+                throw new IllegalArgumentException("Sharded JDBC needs library.jdbc.url." + i);
+            }
+            return LibraryStore.fromConfig(shard);
+        });
+    }
+
+    public int shardOf(String isbn) {
+        int h = isbn.hashCode();
+        return Math.floorMod(h ^ (h >>> 16), shards.length);
+    }
+
+    public SimpleLibrary shard(String isbn) {
+        return shards[shardOf(isbn)];
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public CompletableFuture<Void> addBookAsync(Book book) {
+        int i = shardOf(book.isbn);
+        return loops[i].submit(() -> {
+            shards[i].addBook(book);
+            return null;
+        });
+    }
+
+    public void addBook(Book book) {
+        addBookAsync(book).join();
+    }
+
+    // Each shard gets its own copy, whose borrowed list only covers that shard's books
+    public void addUser(User user) {
+        CompletableFuture<?>[] added = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            SimpleLibrary shard = shards[i];
+            added[i] = loops[i].submit(() -> {
+                shard.addUser(new User(user.userId, user.name));
+                return null;
+            });
+        }
+        CompletableFuture.allOf(added).join();
+    }
+
+    public CompletableFuture<Boolean> borrowBookAsync(String isbn, String userId) {
+        if (!shards[0].users.containsKey(userId) || !reserve(userId)) return CompletableFuture.completedFuture(false);
+        int i = shardOf(isbn);
+        return loops[i].submit(() -> shards[i].borrowBook(isbn, userId)).handle((borrowed, error) -> {
+            if (error != null || !borrowed) release(userId);
+            if (error != null) throw new CompletionException(error);
+            return borrowed;
+        });
+    }
+
+    public boolean borrowBook(String isbn, String userId) {
+        return borrowBookAsync(isbn, userId).join();
+    }
+
+    public CompletableFuture<Boolean> returnBookAsync(String isbn, String userId) {
+        int i = shardOf(isbn);
+        return loops[i].submit(() -> shards[i].returnBook(isbn, userId)).thenApply(returned -> {
+            if (returned) release(userId);
+            return returned;
+        });
+    }
+
+    public boolean returnBook(String isbn, String userId) {
+        return returnBookAsync(isbn, userId).join();
+    }
+
+    // Reads go straight to the shards' concurrent maps
+    public Book getBook(String isbn) {
+        return shard(isbn).books.get(isbn);
+    }
+
+    public List<BorrowTransaction> getActiveLoans(String userId) {
+        List<BorrowTransaction> loans = new ArrayList<>();
+        for (SimpleLibrary shard : shards) loans.addAll(shard.getActiveLoans(userId));
+        return loans;
+    }
+
+    public int loanCount(String userId) {
+        AtomicInteger count = loansByUser.get(userId);
+        return count == null ? 0 : count.get();
+    }
+
+    // Each shard ranks its own matches; taking them in turn keeps every shard's best results near the top
+    public List<Book> search(String query, int limit) {
+        List<List<Book>> perShard = new ArrayList<>();
+        for (SimpleLibrary shard : shards) perShard.add(shard.search(query, limit));
+        List<Book> merged = new ArrayList<>(limit);
+        for (int rank = 0; merged.size() < limit; rank++) {
+            boolean any = false;
+            for (List<Book> results : perShard) {
+                if (rank < results.size() && merged.size() < limit) {
+                    merged.add(results.get(rank));
+                    any = true;
+                }
+            }
+            if (!any) break;
+        }
+        return merged;
+    }
+
+    public long getTransactionCount() {
+        long total = 0;
+        for (SimpleLibrary shard : shards) total += shard.getTransactionCount();
+        return total;
+    }
+
+    public void addListener(LibraryListener listener) {
+        for (SimpleLibrary shard : shards) shard.addListener(listener);
+    }
+
+    public void flush() {
+        for (SimpleLibrary shard : shards) shard.flush();
+    }
+
+    // Finishes the queued work first
+    public void close() {
+        for (ShardLoop loop : loops) loop.close();
+        for (SimpleLibrary shard : shards) shard.close();
+    }
+
+    private AtomicInteger reservations(String userId) {
+        return loansByUser.computeIfAbsent(userId, k -> new AtomicInteger());
+    }
+
+    private boolean reserve(String userId) {
+        AtomicInteger count = reservations(userId);
+        while (true) {
+            int current = count.get();
+            if (current >= User.MAX_BOOKS_LIMIT) return false;
+            if (count.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    private void release(String userId) {
+        reservations(userId).decrementAndGet();
+    }
+
+    // Single writer for one shard: tasks run one at a time in submission order on the loop's own thread.
+    // The queue is bounded, so producers slow down to the shard's pace instead of piling up work.
+    // A task that lands in the queue after the thread has stopped is failed, by close or by its submitter.
+    private static class ShardLoop {
+        private final BlockingQueue<Task<?>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        ShardLoop(String name) {
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        <T> CompletableFuture<T> submit(Supplier<T> supplier) {
+            Task<T> task = new Task<>(supplier);
+            if (!running) {
+                task.fail();
+                return task.result;
+            }
+            try {
+                queue.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                task.result.completeExceptionally(e);
+                return task.result;
+            }
+            // Closed while this was queuing: if neither the loop nor close has taken the task, nobody will
+            if (!running && queue.remove(task)) task.fail();
+            return task.result;
+        }
+
+        private void run() {
+            List<Task<?>> batch = new ArrayList<>();
+            while (running || !queue.isEmpty()) {
+                try {
+                    Task<?> first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) continue;
+                    first.run();
+                } catch (InterruptedException e) {
+                    running = false;
+                }
+                // Whatever queued up meanwhile runs without another wake-up
+                queue.drainTo(batch);
+                for (Task<?> task : batch) task.run();
+                batch.clear();
+            }
+        }
+
+        void close() {
+            running = false;
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            List<Task<?>> stranded = new ArrayList<>();
+            queue.drainTo(stranded);
+            for (Task<?> task : stranded) task.fail();
+        }
+    }
+
+    private static class Task<T> {
+        final Supplier<T> supplier;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(Supplier<T> supplier) {
+            this.supplier = supplier;
+        }
+
+        void run() {
+            try {
+                result.complete(supplier.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+
+        void fail() {
+            result.completeExceptionally(new IllegalStateException("Shard is closed"));
+        }
+    }
+}
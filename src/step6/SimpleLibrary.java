@@ -1,168 +1,716 @@
 package step6;
 
-import java.sql.*;
+import java.time.Clock;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 public class SimpleLibrary {
-    public HashMap<String, Book> books = new HashMap<>();
-    public HashMap<String, User> users = new HashMap<>();
-    public HashMap<String, BorrowTransaction> transactions = new HashMap<>();
-    public int transactionCounter = 1;
-    public boolean useDatabase = false;
-    public Connection connection;
+    public static final int LOCK_STRIPES = 64;
+    public static final int DEFAULT_CACHE_SIZE = 10_000;
+    public static final long DEFAULT_HOLD_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_LOAN_MILLIS = TimeUnit.DAYS.toMillis(14);
+    public static final long DEFAULT_FINE_PER_DAY_CENTS = 25;
+    public static final long DUE_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
+    public Map<String, Book> books = new ConcurrentHashMap<>();
+    public Map<String, User> users = new ConcurrentHashMap<>();
+    public Map<String, BorrowTransaction> transactions = new ConcurrentHashMap<>();
+    // Held while putBook replaces a book already in the catalog
+    private final Object replacing = new Object();
+    public Map<String, List<BorrowTransaction>> activeLoansByUser = new ConcurrentHashMap<>();
+    public AtomicInteger transactionCounter = new AtomicInteger(1);
+    public final LibraryStore store;
+    public final TransactionCache recentTransactions;
+    public final SearchIndex searchIndex;
+    // Returned loans of in-memory stores kept as primitive columns instead of objects; null when disabled
+    public final CompactHistory compactHistory;
+    // Set when books lives in direct memory; its Book objects are views, so copies are counted in the catalog records
+    private final OffHeapCatalog offHeapCatalog;
+    public long readyMillis;
+    public final HoldQueues holds = new HoldQueues();
+    // Kept current by every borrow and return, and by the load; stores that load history lazily only contribute
+    // their active loans at load, so their history before startup is not counted
+    public final CirculationStats stats = new CirculationStats();
+    // How long a new hold waits before it expires
+    public long holdMillis = DEFAULT_HOLD_MILLIS;
+    public long loanMillis = DEFAULT_LOAN_MILLIS;
+    public long finePerDayCents = DEFAULT_FINE_PER_DAY_CENTS;
+    // Source of every borrow, return, due and hold time; pass a controllable clock to the constructor to drive time in tests
+    public volatile Clock clock;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final List<LibraryListener> listeners = new CopyOnWriteArrayList<>();
+    // Borrow-ordered history for stores that keep it all in memory, so pages are sublists instead of sorts
+    private final List<BorrowTransaction> historyLog = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicLong transactionCount = new AtomicLong();
+    private volatile ScheduledExecutorService timer;
+    // Active loans not yet due, and loans already reported overdue; a loan is in at most one of them
+    private final DueQueue dueQueue = new DueQueue();
+    private final Map<String, BorrowTransaction> overdue = new ConcurrentHashMap<>();
+    // Null while metrics are disabled; operations read it once and skip all timing when it is null
+    private volatile LibraryMetrics metrics;
+    // Shards interleave transaction IDs: this library hands out idFirst, idFirst + idStride, ...
+    private volatile int idFirst = 1, idStride = 1;
+
+    // The backend comes from system properties, see LibraryStore.fromConfig;
+    // -Dlibrary.compactHistory=true and -Dlibrary.offHeapCatalog=true enable the compact representations;
+    // -Dlibrary.metrics=true enables metrics for every library, including the load
     public SimpleLibrary() {
-        initializeDatabase();
+        this(LibraryStore.fromConfig(System.getProperties()), DEFAULT_CACHE_SIZE,
+                Boolean.getBoolean("library.compactHistory"), Boolean.getBoolean("library.offHeapCatalog"));
     }
 
-    public void initializeDatabase() {
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            connection = DriverManager.getConnection("jdbc:mysql://localhost:3306/library_db", "root", "pass");
-            createTables();
-            useDatabase = true;
-            loadDataFromDatabase();
-        } catch (Exception e) {
-            useDatabase = false;
-        }
+    public SimpleLibrary(LibraryStore store) {
+        this(store, DEFAULT_CACHE_SIZE);
+    }
+
+    public SimpleLibrary(LibraryStore store, int cacheSize) {
+        this(store, cacheSize, false);
+    }
+
+    // Compact history only applies to stores that keep history in memory; lazy stores already leave it in the database
+    public SimpleLibrary(LibraryStore store, int cacheSize, boolean compactHistory) {
+        this(store, cacheSize, compactHistory, false);
+    }
+
+    public SimpleLibrary(LibraryStore store, int cacheSize, boolean compactHistory, boolean offHeapCatalog) {
+        this(store, cacheSize, compactHistory, offHeapCatalog, Clock.systemUTC());
+    }
+
+    public SimpleLibrary(LibraryStore store, Clock clock) {
+        this(store, DEFAULT_CACHE_SIZE, false, false, clock);
     }
 
-    public void createTables() throws SQLException {
-        String[] sql = {
-                "CREATE TABLE IF NOT EXISTS books (isbn VARCHAR(50) PRIMARY KEY, title VARCHAR(255), author VARCHAR(255), status VARCHAR(20))",
-                "CREATE TABLE IF NOT EXISTS users (user_id VARCHAR(50) PRIMARY KEY, name VARCHAR(255))",
-                "CREATE TABLE IF NOT EXISTS transactions (transaction_id VARCHAR(50) PRIMARY KEY, book_isbn VARCHAR(50), user_id VARCHAR(50), borrow_date VARCHAR(50), return_date VARCHAR(50), is_returned INT DEFAULT 0)"
-        };
-        for (String s : sql) connection.createStatement().execute(s);
+    public SimpleLibrary(LibraryStore store, int cacheSize, boolean compactHistory, boolean offHeapCatalog, Clock clock) {
+        for (int i = 0; i < locks.length; i++) locks[i] = new ReentrantLock();
+        this.clock = clock;
+        this.store = store;
+        this.offHeapCatalog = offHeapCatalog ? new OffHeapCatalog() : null;
+        if (offHeapCatalog) books = this.offHeapCatalog;
+        this.searchIndex = offHeapCatalog ? new SearchIndex(books) : new SearchIndex();
+        this.compactHistory = compactHistory && !store.loadsHistoryLazily() ? new CompactHistory() : null;
+        this.recentTransactions = new TransactionCache(cacheSize);
+        if (Boolean.getBoolean("library.metrics")) enableMetrics();
+        long start = System.nanoTime();
+        loadDataFromDatabase();
+        if (store.loadsHistoryLazily()) transactionCount.set(store.countTransactions());
+        readyMillis = (System.nanoTime() - start) / 1_000_000;
+        timer().scheduleWithFixedDelay(this::checkDueLoans, DUE_CHECK_MILLIS, DUE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     public void addBook(Book book) {
-        books.put(book.isbn, book);
-        if (useDatabase) {
-            try {
-                PreparedStatement stmt = connection.prepareStatement("INSERT INTO books (isbn, title, author, status) VALUES (?, ?, ?, ?)");
-                stmt.setString(1, book.isbn);
-                stmt.setString(2, book.title);
-                stmt.setString(3, book.author);
-                stmt.setString(4, book.status.toString());
-                stmt.executeUpdate();
-            } catch (SQLException ignored) {}
+        LibraryMetrics m = metrics;
+        long start = m == null ? 0 : m.start();
+        putBook(book);
+        long storeStart = m == null ? 0 : System.nanoTime();
+        store.saveBook(book);
+        if (m != null) {
+            m.storeCall(LibraryMetrics.Operation.ADD_BOOK, storeStart);
+            m.record(LibraryMetrics.Operation.ADD_BOOK, start, true);
         }
+        for (LibraryListener listener : listeners) listener.bookAdded(book);
     }
 
     public void addUser(User user) {
+        LibraryMetrics m = metrics;
+        long start = m == null ? 0 : m.start();
         users.put(user.userId, user);
-        if (useDatabase) {
-            try {
-                PreparedStatement stmt = connection.prepareStatement("INSERT INTO users (user_id, name) VALUES (?, ?)");
-                stmt.setString(1, user.userId);
-                stmt.setString(2, user.name);
-                stmt.executeUpdate();
-            } catch (SQLException ignored) {}
+        long storeStart = m == null ? 0 : System.nanoTime();
+        store.saveUser(user);
+        if (m != null) {
+            m.storeCall(LibraryMetrics.Operation.ADD_USER, storeStart);
+            m.record(LibraryMetrics.Operation.ADD_USER, start, true);
         }
+        for (LibraryListener listener : listeners) listener.userAdded(user);
     }
 
     public boolean borrowBook(String isbn, String userId) {
+        LibraryMetrics m = metrics;
+        if (m == null) return borrow(isbn, userId);
+        long start = m.start();
+        boolean borrowed = borrow(isbn, userId);
+        m.record(LibraryMetrics.Operation.BORROW_BOOK, start, borrowed);
+        return borrowed;
+    }
+
+    private boolean borrow(String isbn, String userId) {
         Book book = books.get(isbn);
         User user = users.get(userId);
-        if (book == null || user == null || !book.isAvailable() || !user.canBorrowMoreBooks()) return false;
+        if (book == null || user == null) return false;
+
+        // Only the user's stripe is locked; copies of the book are claimed through its atomic counter
+        lock(userId);
+        try {
+            if (!user.canBorrowMoreBooks() || user.hasBorrowedBook(isbn)) return false;
+            if (!checkOut(book)) return false;
+            lend(book, user);
+            return true;
+        } finally {
+            unlock(userId);
+        }
+    }
 
-        String transactionId = "T" + transactionCounter++;
-        BorrowTransaction transaction = new BorrowTransaction(transactionId, isbn, userId);
+    // Records a loan for a copy already taken off the shelf; the caller holds the user's stripe
+    private BorrowTransaction lend(Book book, User user) {
+        String isbn = book.isbn, userId = user.userId;
+        BorrowTransaction transaction;
+        if (compactHistory != null) {
+            // IDs are handed out under the history lock so its rows stay in ID order
+            synchronized (compactHistory) {
+                transaction = newTransaction(isbn, userId);
+                compactHistory.append(transaction);
+            }
+        } else {
+            transaction = newTransaction(isbn, userId);
+        }
 
-        book.status = BookStatus.BORROWED;
         user.borrowBook(isbn);
-        transactions.put(transactionId, transaction);
+        transactions.put(transaction.transactionId, transaction);
+        indexActiveLoan(transaction);
+        dueQueue.add(transaction);
+        transactionCount.incrementAndGet();
+        stats.borrowed(transaction);
+        if (residentHistory()) historyLog.add(transaction);
 
-        if (useDatabase) {
-            try {
-                connection.prepareStatement("UPDATE books SET status = 'BORROWED' WHERE isbn = '" + isbn + "'").executeUpdate();
-                PreparedStatement stmt = connection.prepareStatement("INSERT INTO transactions (transaction_id, book_isbn, user_id, borrow_date, is_returned) VALUES (?, ?, ?, ?, 0)");
-                stmt.setString(1, transactionId);
-                stmt.setString(2, isbn);
-                stmt.setString(3, userId);
-                stmt.setString(4, transaction.borrowDate.toString());
-                stmt.executeUpdate();
-            } catch (SQLException ignored) {}
+        LibraryMetrics m = metrics;
+        long storeStart = m == null ? 0 : System.nanoTime();
+        store.saveTransaction(transaction);
+        if (m != null) m.storeCall(LibraryMetrics.Operation.BORROW_BOOK, storeStart);
+        if (offHeapCatalog != null) book = offHeapCatalog.get(isbn);
+        for (LibraryListener listener : listeners) {
+            listener.bookStatusChanged(book);
+            listener.userChanged(user);
+            listener.transactionAdded(transaction);
         }
-        return true;
+        return transaction;
+    }
+
+    private BorrowTransaction newTransaction(String isbn, String userId) {
+        long now = clock.millis();
+        BorrowTransaction transaction = new BorrowTransaction("T" + transactionCounter.getAndAdd(idStride), isbn, userId, new Date(now));
+        transaction.dueDate = new Date(now + loanMillis);
+        return transaction;
     }
 
+    // With users waiting, the returned copy skips the shelf and goes straight to the next eligible holder
     public boolean returnBook(String isbn, String userId) {
+        LibraryMetrics m = metrics;
+        if (m == null) return giveBack(isbn, userId);
+        long start = m.start();
+        boolean returned = giveBack(isbn, userId);
+        m.record(LibraryMetrics.Operation.RETURN_BOOK, start, returned);
+        return returned;
+    }
+
+    private boolean giveBack(String isbn, String userId) {
+        Book book = books.get(isbn);
+        User user = users.get(userId);
+        if (book == null || user == null) return false;
+
+        boolean handOff;
+        lock(userId);
+        try {
+            BorrowTransaction t = null;
+            for (BorrowTransaction loan : getActiveLoans(userId)) {
+                if (loan.bookIsbn.equals(isbn)) t = loan;
+            }
+            if (t == null) return false;
+
+            user.returnBook(isbn);
+            t.markAsReturned(new Date(clock.millis()));
+            unindexActiveLoan(t);
+            stats.returned(t);
+            if (!dueQueue.remove(t)) overdue.remove(t.transactionId);
+            if (compactHistory != null) compactHistory.markReturned(t);
+            // Returned loans only stay resident as objects when neither the store nor compact history holds them
+            if (!residentHistory()) {
+                transactions.remove(t.transactionId);
+                recentTransactions.put(t);
+            }
+
+            handOff = holds.hasWaiting(isbn);
+            if (!handOff) checkIn(book);
+            LibraryMetrics m = metrics;
+            long storeStart = m == null ? 0 : System.nanoTime();
+            store.markReturned(t);
+            if (m != null) m.storeCall(LibraryMetrics.Operation.RETURN_BOOK, storeStart);
+            if (offHeapCatalog != null) book = offHeapCatalog.get(isbn);
+            for (LibraryListener listener : listeners) {
+                listener.bookStatusChanged(book);
+                listener.userChanged(user);
+                listener.transactionReturned(t);
+            }
+        } finally {
+            unlock(userId);
+        }
+        // Outside the returner's stripe, so taking the holder's stripe can never deadlock
+        if (handOff) passToHolder(book);
+        return true;
+    }
+
+    // Moves the due date to a full loan period from now. Refused while another user holds the book,
+    // and once the loan is overdue: it has to come back, and its fine stands.
+    public boolean renewLoan(String isbn, String userId) {
+        if (users.get(userId) == null) return false;
+        lock(userId);
+        try {
+            BorrowTransaction t = null;
+            for (BorrowTransaction loan : getActiveLoans(userId)) {
+                if (loan.bookIsbn.equals(isbn)) t = loan;
+            }
+            long now = clock.millis();
+            if (t == null || t.isOverdue(now) || holds.hasWaiting(isbn)) return false;
+            // Out of the queue while the due date changes, so the heap never holds a loan under a stale key
+            if (!dueQueue.remove(t)) return false;
+            t.dueDate = new Date(now + loanMillis);
+            dueQueue.add(t);
+            if (compactHistory != null) compactHistory.markRenewed(t);
+            store.markRenewed(t);
+            for (LibraryListener listener : listeners) listener.loanRenewed(t);
+            return true;
+        } finally {
+            unlock(userId);
+        }
+    }
+
+    // Borrows right away when a copy is free, otherwise queues the user; false for unknown IDs,
+    // a book the user already has, or a hold already placed
+    public boolean placeHold(String isbn, String userId) {
         Book book = books.get(isbn);
         User user = users.get(userId);
-        if (book == null || user == null || book.isAvailable() || !user.hasBorrowedBook(isbn)) return false;
-
-        for (BorrowTransaction t : transactions.values()) {
-            if (t.bookIsbn.equals(isbn) && t.userId.equals(userId) && !t.isReturned) {
-                book.status = BookStatus.AVAILABLE;
-                user.returnBook(isbn);
-                t.markAsReturned();
-
-                if (useDatabase) {
-                    try {
-                        connection.prepareStatement("UPDATE books SET status = 'AVAILABLE' WHERE isbn = '" + isbn + "'").executeUpdate();
-                        PreparedStatement stmt = connection.prepareStatement("UPDATE transactions SET return_date = ?, is_returned = 1 WHERE transaction_id = ?");
-                        stmt.setString(1, t.returnDate.toString());
-                        stmt.setString(2, t.transactionId);
-                        stmt.executeUpdate();
-                    } catch (SQLException ignored) {}
+        if (book == null || user == null || user.hasBorrowedBook(isbn)) return false;
+        if (borrowBook(isbn, userId)) return true;
+
+        long now = clock.millis();
+        Hold hold = new Hold(isbn, userId, new Date(now), new Date(now + holdMillis));
+        if (!holds.add(hold)) return false;
+        hold.expiry = timer().schedule(() -> expireHold(hold), holdMillis, TimeUnit.MILLISECONDS);
+        for (LibraryListener listener : listeners) listener.holdPlaced(hold);
+        // A copy returned while the hold was being queued would otherwise sit on the shelf
+        if (checkOut(book)) passToHolder(book);
+        return true;
+    }
+
+    public boolean cancelHold(String isbn, String userId) {
+        Hold hold = holds.remove(isbn, userId);
+        if (hold == null) return false;
+        if (hold.expiry != null) hold.expiry.cancel(false);
+        for (LibraryListener listener : listeners) listener.holdCancelled(hold);
+        return true;
+    }
+
+    public List<Hold> getHolds(String isbn) {
+        return holds.holds(isbn);
+    }
+
+    // Lends a copy that is already off the shelf to the first eligible holder, or shelves it when nobody qualifies
+    private void passToHolder(Book book) {
+        while (true) {
+            Hold hold = holds.next(book.isbn, clock.millis(), h -> {
+                User waiting = users.get(h.userId);
+                return waiting != null && waiting.canBorrowMoreBooks() && !waiting.hasBorrowedBook(h.isbn);
+            }, this::holdExpired);
+            if (hold == null) {
+                checkIn(book);
+                return;
+            }
+            User user = users.get(hold.userId);
+            lock(hold.userId);
+            try {
+                // The user may have borrowed elsewhere since the check; then the hold goes back to the head
+                if (user.canBorrowMoreBooks() && !user.hasBorrowedBook(hold.isbn)) {
+                    if (hold.expiry != null) hold.expiry.cancel(false);
+                    BorrowTransaction transaction = lend(book, user);
+                    for (LibraryListener listener : listeners) listener.holdFulfilled(hold, transaction);
+                    return;
                 }
-                return true;
+            } finally {
+                unlock(hold.userId);
             }
+            holds.restore(hold);
         }
-        return false;
     }
 
-    public void printStatus() {
-        System.out.println("Storage: " + (useDatabase ? "Database" : "Memory") + " | Books: " + books.size() + ", Users: " + users.size() + ", Transactions: " + transactions.size());
+    // Holds not yet expired by the library clock are left for hand-off to drop later
+    private void expireHold(Hold hold) {
+        if (hold.isExpired(clock.millis()) && holds.remove(hold)) holdExpired(hold);
     }
 
-    public void close() {
-        if (connection != null) {
-            try { connection.close(); } catch (SQLException ignored) {}
+    // Overdue loans, earliest due first; only loans that fell due since the last check are examined
+    public List<BorrowTransaction> overdueLoans() {
+        checkDueLoans();
+        List<BorrowTransaction> loans = new ArrayList<>(overdue.values());
+        loans.sort(Comparator.comparing((BorrowTransaction t) -> t.dueDate));
+        return loans;
+    }
+
+    // Moves loans that have fallen due into the overdue set and notifies listeners once per loan.
+    // Runs every DUE_CHECK_MILLIS on the timer and whenever overdueLoans() is called.
+    public void checkDueLoans() {
+        List<BorrowTransaction> due = new ArrayList<>();
+        // Filled under the queue's lock, so a concurrent return finds the loan in one place or the other
+        dueQueue.pollDue(clock.millis(), t -> {
+            overdue.put(t.transactionId, t);
+            due.add(t);
+        });
+        for (BorrowTransaction t : due) {
+            for (LibraryListener listener : listeners) listener.loanOverdue(t);
         }
     }
 
-    public void loadDataFromDatabase() {
-        if (!useDatabase) return;
-        try {
-            // Load books
-            ResultSet rs = connection.createStatement().executeQuery("SELECT * FROM books");
-            while (rs.next()) {
-                Book book = new Book(rs.getString("isbn"), rs.getString("title"), rs.getString("author"));
-                book.status = BookStatus.valueOf(rs.getString("status"));
-                books.put(book.isbn, book);
+    // Whole days late, rounded up, up to the return or now
+    public long getFineCents(BorrowTransaction t) {
+        if (t.dueDate == null) return 0;
+        long end = t.isReturned ? t.returnDate.getTime() : clock.millis();
+        long late = end - t.dueDate.getTime();
+        if (late <= 0) return 0;
+        long day = TimeUnit.DAYS.toMillis(1);
+        return (late + day - 1) / day * finePerDayCents;
+    }
+
+    private void holdExpired(Hold hold) {
+        for (LibraryListener listener : listeners) listener.holdExpired(hold);
+    }
+
+    // One daemon thread for hold expiry and due checks
+    private ScheduledExecutorService timer() {
+        ScheduledExecutorService current = timer;
+        if (current == null) {
+            synchronized (holds) {
+                current = timer;
+                if (current == null) {
+                    current = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "library-timer");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    timer = current;
+                }
             }
+        }
+        return current;
+    }
 
-            // Load users
-            rs = connection.createStatement().executeQuery("SELECT * FROM users");
-            while (rs.next()) {
-                users.put(rs.getString("user_id"), new User(rs.getString("user_id"), rs.getString("name")));
+    // Off-heap views are copies, so the counter in the catalog record is the one that moves.
+    // A caller may still hold a book that putBook has since retired; its copies are then on the replacement's shelf.
+    private boolean checkOut(Book book) {
+        if (offHeapCatalog != null) return offHeapCatalog.checkOut(book.isbn);
+        while (!book.checkOut()) {
+            Book current = book.isRetired() ? books.get(book.isbn) : null;
+            if (current == null || current == book) return false;
+            book = current;
+        }
+        return true;
+    }
+
+    private void checkIn(Book book) {
+        if (offHeapCatalog != null) {
+            offHeapCatalog.checkIn(book.isbn);
+            return;
+        }
+        while (!book.checkIn()) {
+            Book current = books.get(book.isbn);
+            if (current == null || current == book) return;
+            book = current;
+        }
+    }
+
+    private void lock(String userId) {
+        locks[stripe(userId)].lock();
+    }
+
+    private void unlock(String userId) {
+        locks[stripe(userId)].unlock();
+    }
+
+    private int stripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    public List<BorrowTransaction> getActiveLoans(String userId) {
+        return activeLoansByUser.getOrDefault(userId, Collections.emptyList());
+    }
+
+    // Lists are written under the user's stripe and copied on write, so snapshots and the GUI can iterate them freely
+    private void indexActiveLoan(BorrowTransaction t) {
+        activeLoansByUser.computeIfAbsent(t.userId, id -> new CopyOnWriteArrayList<>()).add(t);
+    }
+
+    private void unindexActiveLoan(BorrowTransaction t) {
+        List<BorrowTransaction> loans = activeLoansByUser.get(t.userId);
+        if (loans != null) {
+            loans.remove(t);
+            if (loans.isEmpty()) activeLoansByUser.remove(t.userId);
+        }
+    }
+
+    private boolean residentHistory() {
+        return compactHistory == null && !store.loadsHistoryLazily();
+    }
+
+    public void addListener(LibraryListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(LibraryListener listener) {
+        listeners.remove(listener);
+    }
+
+    public long getTransactionCount() {
+        return transactionCount.get();
+    }
+
+    // Ranked title/author search; each query word may be a prefix, e.g. "tolk hob"
+    public List<Book> search(String query, int limit) {
+        return searchIndex.search(query, limit);
+    }
+
+    public BorrowTransaction getTransaction(String transactionId) {
+        BorrowTransaction t = transactions.get(transactionId);
+        if (t != null || residentHistory()) return t;
+        t = recentTransactions.get(transactionId);
+        if (t == null) {
+            t = compactHistory != null ? compactHistory.find(transactionId) : store.findTransaction(transactionId);
+            if (t != null) recentTransactions.put(t);
+        }
+        return t;
+    }
+
+    // History pages are in borrow order
+    public List<BorrowTransaction> getTransactionHistory(int offset, int limit) {
+        if (residentHistory()) {
+            synchronized (historyLog) {
+                int from = Math.min(offset, historyLog.size()), to = Math.min(offset + limit, historyLog.size());
+                return new ArrayList<>(historyLog.subList(from, to));
             }
+        }
+        return findHistory(null, null, null, null, offset, limit);
+    }
 
-            // Load user's borrowed books
-            rs = connection.createStatement().executeQuery("SELECT user_id, book_isbn FROM transactions WHERE is_returned = 0");
-            while (rs.next()) {
-                User user = users.get(rs.getString("user_id"));
-                if (user != null) user.borrowedBooks.add(rs.getString("book_isbn"));
+    public List<BorrowTransaction> getUserHistory(String userId, int offset, int limit) {
+        return findHistory(userId, null, null, null, offset, limit);
+    }
+
+    public List<BorrowTransaction> getBookHistory(String isbn, int offset, int limit) {
+        return findHistory(null, isbn, null, null, offset, limit);
+    }
+
+    public List<BorrowTransaction> getHistoryBetween(Date from, Date to, int offset, int limit) {
+        return findHistory(null, null, from, to, offset, limit);
+    }
+
+    // Stores that keep history out of memory answer from the database, compact history from its columns;
+    // cached or active instances replace the fresh copies
+    private List<BorrowTransaction> findHistory(String userId, String isbn, Date from, Date to, int offset, int limit) {
+        if (residentHistory()) {
+            return transactions.values().stream()
+                    .filter(t -> (userId == null || t.userId.equals(userId)) && (isbn == null || t.bookIsbn.equals(isbn))
+                            && (from == null || !t.borrowDate.before(from)) && (to == null || t.borrowDate.before(to)))
+                    .sorted(Comparator.comparingInt((BorrowTransaction t) -> t.transactionId.length()).thenComparing(t -> t.transactionId))
+                    .skip(offset).limit(limit)
+                    .collect(Collectors.toList());
+        }
+        List<BorrowTransaction> page = compactHistory != null
+                ? compactHistory.find(userId, isbn, from, to, offset, limit)
+                : store.findTransactions(userId, isbn, from, to, offset, limit);
+        page.replaceAll(t -> {
+            BorrowTransaction resident = transactions.get(t.transactionId);
+            if (resident != null) return resident;
+            BorrowTransaction cached = recentTransactions.get(t.transactionId);
+            if (cached != null) return cached;
+            recentTransactions.put(t);
+            return t;
+        });
+        return page;
+    }
+
+    // Every transaction, active or returned, in no particular order; lazily loading stores stream theirs from the database
+    public void forEachTransaction(Consumer<BorrowTransaction> action) {
+        if (residentHistory()) {
+            List<BorrowTransaction> rows;
+            synchronized (historyLog) {
+                rows = new ArrayList<>(historyLog);
             }
+            rows.forEach(action);
+        } else if (compactHistory != null) {
+            compactHistory.forEach(action);
+        } else {
+            store.forEachTransaction(action);
+        }
+    }
+
+    public void flush() {
+        store.flush();
+    }
+
+    public void printStatus() {
+        System.out.println("Storage: " + store.name() + " | Books: " + books.size() + ", Users: " + users.size() + ", Transactions: " + transactions.size()
+                + (compactHistory != null ? " | Compact history: " + compactHistory : "") + " | Ready in " + readyMillis + " ms | History cache: " + recentTransactions);
+        System.out.println(stats);
+        LibraryMetrics m = metrics;
+        if (m != null) System.out.println(m.summary());
+    }
+
+    // Registers the JMX view as well; calling it again returns the same metrics
+    public synchronized LibraryMetrics enableMetrics() {
+        if (metrics == null) {
+            LibraryMetrics created = new LibraryMetrics(this);
+            created.register();
+            metrics = created;
+        }
+        return metrics;
+    }
+
+    public synchronized void disableMetrics() {
+        if (metrics != null) metrics.unregister();
+        metrics = null;
+    }
 
-            // Load transactions
-            rs = connection.createStatement().executeQuery("SELECT * FROM transactions");
-            while (rs.next()) {
-                BorrowTransaction transaction = new BorrowTransaction(rs.getString("transaction_id"), rs.getString("book_isbn"), rs.getString("user_id"));
-                if (rs.getInt("is_returned") == 1) transaction.markAsReturned();
-                transactions.put(transaction.transactionId, transaction);
+    // Null while metrics are disabled
+    public LibraryMetrics getMetrics() {
+        return metrics;
+    }
+
+    int dueQueueSize() {
+        return dueQueue.size();
+    }
+
+    int overdueCount() {
+        return overdue.size();
+    }
+
+    public void close() {
+        disableMetrics();
+        if (timer != null) timer.shutdownNow();
+        store.close();
+    }
+
+    // Restores run inside store.load, so all of the load counts as store time
+    public void loadDataFromDatabase() {
+        LibraryMetrics m = metrics;
+        long start = m == null ? 0 : m.start();
+        store.load(this);
+        if (m != null) {
+            m.storeCall(LibraryMetrics.Operation.LOAD, start);
+            m.record(LibraryMetrics.Operation.LOAD, start, true);
+        }
+    }
+
+    // Called by stores while loading; no locking or persistence happens here
+    void restoreBook(Book book) {
+        putBook(book);
+    }
+
+    // Copies already out stay out when a book is added again
+    private void putBook(Book book) {
+        if (offHeapCatalog != null) {
+            // The catalog carries the lent copies over under its write lock, which checkOut and checkIn wait for
+            Book previous = books.get(book.isbn);
+            books.put(book.isbn, book);
+            if (previous != null) {
+                searchIndex.remove(previous);
+                book.availableCopies.set(books.get(book.isbn).availableCopies.get());
+            }
+            searchIndex.add(book);
+            return;
+        }
+        if (books.putIfAbsent(book.isbn, book) != null) {
+            // Borrowers and returners work on whichever book they looked up, without a lock, so the new book goes up
+            // with an empty shelf and the old one is retired in one step; copies then checked out or in on the old
+            // book move to the new one. Re-adds of the same ISBN take turns so each retires a fully stocked book.
+            synchronized (replacing) {
+                book.availableCopies.set(0);
+                Book previous = books.put(book.isbn, book);
+                int lent = previous.copies - previous.retire();
+                book.availableCopies.updateAndGet(returned -> Math.max(0, Math.min(book.copies, book.copies - lent + returned)));
             }
+        }
+        searchIndex.add(book);
+    }
 
-            // Update transaction counter
-            int maxCounter = transactions.keySet().stream()
-                    .filter(id -> id.startsWith("T"))
-                    .mapToInt(id -> { try { return Integer.parseInt(id.substring(1)); } catch (NumberFormatException e) { return 0; } })
-                    .max().orElse(0);
-            transactionCounter = maxCounter + 1;
+    void restoreUser(User user) {
+        users.put(user.userId, user);
+    }
 
-        } catch (SQLException ignored) {}
+    void restoreTransaction(BorrowTransaction t) {
+        // Loans stored before due dates existed get the current loan period
+        if (!t.isReturned && t.dueDate == null) t.dueDate = new Date(t.borrowDate.getTime() + loanMillis);
+        if (compactHistory == null || !t.isReturned) transactions.put(t.transactionId, t);
+        stats.borrowed(t);
+        if (t.isReturned) stats.returned(t);
+        if (compactHistory != null) {
+            compactHistory.append(t);
+            transactionCount.incrementAndGet();
+        } else if (!store.loadsHistoryLazily()) {
+            historyLog.add(t);
+            transactionCount.incrementAndGet();
+        }
+        if (!t.isReturned) {
+            indexActiveLoan(t);
+            dueQueue.add(t);
+            User user = users.get(t.userId);
+            if (user != null) user.borrowedBooks.add(t.bookIsbn);
+            Book book = books.get(t.bookIsbn);
+            if (book != null) checkOut(book);
+        }
+        restoreTransactionCounter(t.transactionId);
+    }
+
+    // Bulk import: applies a transaction the library does not hold yet, without persisting it; false for a known ID.
+    // Returned loans of a lazily loading store stay out of memory, their rows go straight to the store.
+    boolean importTransaction(BorrowTransaction t) {
+        lock(t.userId);
+        try {
+            if (holdsTransaction(t.transactionId)) return false;
+            if (t.isReturned && store.loadsHistoryLazily()) restoreTransactionCounter(t.transactionId);
+            else restoreTransaction(t);
+            return true;
+        } finally {
+            unlock(t.userId);
+        }
+    }
+
+    // Whether the transaction is in memory, active or in compact history; lazily loading stores keep returned ones elsewhere
+    boolean holdsTransaction(String transactionId) {
+        return transactions.containsKey(transactionId) || (compactHistory != null && compactHistory.find(transactionId) != null);
+    }
+
+    // After a bulk import, lazily loading stores are the only place that knows how many rows were new
+    void recountTransactions() {
+        if (store.loadsHistoryLazily()) transactionCount.set(store.countTransactions());
+    }
+
+    void restoreTransactionCounter(int next) {
+        transactionCounter.accumulateAndGet(alignId(next), Math::max);
+    }
+
+    // Called by ShardedLibrary after loading; the next ID is the first of this shard's IDs above every ID seen so far
+    void useTransactionIds(int first, int stride) {
+        idFirst = first;
+        idStride = stride;
+        transactionCounter.updateAndGet(this::alignId);
+    }
+
+    private int alignId(int next) {
+        int n = Math.max(next, idFirst);
+        return n + Math.floorMod(idFirst - n, idStride);
+    }
+
+    void restoreTransactionCounter(String transactionId) {
+        if (transactionId.startsWith("T")) {
+            try {
+                int counter = Integer.parseInt(transactionId.substring(1));
+                restoreTransactionCounter(counter + 1);
+            } catch (NumberFormatException ignored) {}
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package step6;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Size-capped LRU of transactions that are no longer active, so history reads avoid the store without growing the heap
+public class TransactionCache {
+    public final int capacity;
+    public final AtomicLong hits = new AtomicLong();
+    public final AtomicLong misses = new AtomicLong();
+    private final LinkedHashMap<String, BorrowTransaction> entries;
+
+    public TransactionCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, BorrowTransaction>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, BorrowTransaction> eldest) {
+                return size() > TransactionCache.this.capacity;
+            }
+        };
+    }
+
+    public synchronized BorrowTransaction get(String transactionId) {
+        BorrowTransaction t = entries.get(transactionId);
+        (t != null ? hits : misses).incrementAndGet();
+        return t;
+    }
+
+    public synchronized void put(BorrowTransaction t) {
+        entries.put(t.transactionId, t);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public double hitRate() {
+        long h = hits.get(), total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public String toString() {
+        return size() + "/" + capacity + " cached, " + hits.get() + " hits, " + misses.get() + " misses";
+    }
+}
@@ -0,0 +1,106 @@
+package step6;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+// Paged view over the full history: only the pages the table actually paints are held, however long the history is
+public class TransactionsTableModel extends AbstractTableModel {
+    public static final int PAGE_SIZE = 500;
+    private static final int CACHED_PAGES = 8;
+    private static final String[] COLUMNS = {"ID", "Book", "User", "Status"};
+
+    private final SimpleLibrary library;
+    private final Executor executor;
+    private final Set<Integer> loading = new HashSet<>();
+    private int generation;
+    private final LinkedHashMap<Integer, List<BorrowTransaction>> pages = new LinkedHashMap<Integer, List<BorrowTransaction>>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<BorrowTransaction>> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+    private int rowCount;
+
+    public TransactionsTableModel(SimpleLibrary library, Executor executor) {
+        this.library = library;
+        this.executor = executor;
+        this.rowCount = (int) library.getTransactionCount();
+    }
+
+    public void transactionAdded(BorrowTransaction t) {
+        int row = rowCount++;
+        generation++;
+        pages.remove(row / PAGE_SIZE);
+        fireTableRowsInserted(row, row);
+    }
+
+    // Only rows on a cached page can be on screen, so those are the only ones worth repainting
+    public void transactionReturned(BorrowTransaction t) {
+        for (Map.Entry<Integer, List<BorrowTransaction>> page : pages.entrySet()) {
+            List<BorrowTransaction> rows = page.getValue();
+            for (int i = 0; i < rows.size(); i++) {
+                if (rows.get(i).transactionId.equals(t.transactionId)) {
+                    rows.set(i, t);
+                    int row = page.getKey() * PAGE_SIZE + i;
+                    fireTableRowsUpdated(row, row);
+                    return;
+                }
+            }
+        }
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    // Pages not yet loaded show a placeholder while they are fetched in the background
+    public Object getValueAt(int row, int column) {
+        List<BorrowTransaction> page = pages.get(row / PAGE_SIZE);
+        if (page == null) {
+            requestPage(row / PAGE_SIZE);
+            return column == 0 ? "Loading..." : null;
+        }
+        int index = row % PAGE_SIZE;
+        if (index >= page.size()) return null;
+        BorrowTransaction t = page.get(index);
+        switch (column) {
+            case 0: return t.transactionId;
+            case 1: return t.bookIsbn;
+            case 2: return t.userId;
+            default: return t.isReturned ? "Returned" : t.isOverdue(library.clock.millis()) ? "Overdue" : "Active";
+        }
+    }
+
+    // Called on the EDT; a page that raced with a new loan is dropped and fetched again on the next paint,
+    // as is one whose read failed
+    private void requestPage(int number) {
+        if (!loading.add(number)) return;
+        int requestedAt = generation;
+        executor.execute(() -> {
+            List<BorrowTransaction> page;
+            try {
+                page = new ArrayList<>(library.getTransactionHistory(number * PAGE_SIZE, PAGE_SIZE));
+            } catch (RuntimeException e) {
+                System.err.println("History page " + number + " failed: " + e.getMessage());
+                SwingUtilities.invokeLater(() -> loading.remove(number));
+                return;
+            }
+            SwingUtilities.invokeLater(() -> {
+                loading.remove(number);
+                boolean stale = requestedAt != generation && (number + 1) * PAGE_SIZE >= rowCount;
+                if (!stale) pages.put(number, page);
+                int first = number * PAGE_SIZE, last = Math.min(first + PAGE_SIZE, rowCount) - 1;
+                if (first <= last) fireTableRowsUpdated(first, last);
+            });
+        });
+    }
+}
@@ -1,19 +1,20 @@
 package step6;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class User {
     public static final int MAX_BOOKS_LIMIT = 3;
 
     public final String userId;
     public final String name;
+    // Written under the library's stripe for this user and copied on write, so hold checks and the GUI read it unlocked
     public final List<String> borrowedBooks;
 
     public User(String userId, String name) {
         this.userId = userId;
         this.name = name;
-        this.borrowedBooks = new ArrayList<>();
+        this.borrowedBooks = new CopyOnWriteArrayList<>();
     }
 
     public boolean canBorrowMoreBooks() {
@@ -0,0 +1,183 @@
+package step6;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WriteBehindWriter {
+    private static class Mutation {
+        final String sql;
+        final Object[] params;
+
+        Mutation(String sql, Object[] params) {
+            this.sql = sql;
+            this.params = params;
+        }
+    }
+
+    private final LibraryDao dao;
+    private final Connection connection;
+    private final BlockingQueue<Mutation> queue;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final Thread worker;
+    private volatile boolean running = true;
+    private long submitted, written;
+    private final AtomicLong failed = new AtomicLong();
+
+    public WriteBehindWriter(LibraryDao dao, int queueCapacity, int batchSize, long flushIntervalMillis) {
+        this.dao = dao;
+        this.connection = dao.connection;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.worker = new Thread(this::run, "library-write-behind");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Blocks while the queue is full, so callers slow down to the speed of the database
+    public void submit(String sql, Object... params) {
+        // Checked and counted together, so close() either rejects this mutation or waits for it to be written
+        synchronized (this) {
+            if (!running) throw new IllegalStateException("Writer is closed");
+            submitted++;
+        }
+        try {
+            queue.put(new Mutation(sql, params));
+        } catch (InterruptedException e) {
+            synchronized (this) { submitted--; notifyAll(); }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Waits until everything submitted before this call has been committed
+    public synchronized void flush() {
+        long target = submitted;
+        while (written < target) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (this) { running = false; }
+        flush();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    // Mutations dropped because even a write on its own failed
+    public long failedWrites() {
+        return failed.get();
+    }
+
+    private void run() {
+        List<Mutation> batch = new ArrayList<>(batchSize);
+        while (!finished()) {
+            try {
+                Mutation first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) break;
+                    Mutation next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                queue.drainTo(batch);
+                running = false;
+            }
+            if (batch.isEmpty()) continue;
+            try {
+                writeBatch(batch);
+            } catch (RuntimeException e) {
+                // A bad parameter or a driver fault loses this batch, never the worker, or flush() and close() would wait forever
+                failed.addAndGet(batch.size());
+                System.err.println("Write-behind batch of " + batch.size() + " failed: " + e);
+            } finally {
+                synchronized (this) {
+                    written += batch.size();
+                    notifyAll();
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    // A mutation counted just before close() may not be queued yet, so the worker runs until everything counted is written
+    private synchronized boolean finished() {
+        return !running && written >= submitted;
+    }
+
+    // Inserts go first so an UPDATE never reaches a row its INSERT has not created yet.
+    // Statements with the same SQL keep their submission order, so a return never runs ahead of an earlier one.
+    private void writeBatch(List<Mutation> batch) {
+        Map<String, List<Object[]>> bySql = new LinkedHashMap<>();
+        for (Mutation m : batch) if (m.sql.startsWith("INSERT")) bySql.computeIfAbsent(m.sql, k -> new ArrayList<>()).add(m.params);
+        for (Mutation m : batch) if (!m.sql.startsWith("INSERT")) bySql.computeIfAbsent(m.sql, k -> new ArrayList<>()).add(m.params);
+
+        try {
+            connection.setAutoCommit(false);
+            for (Map.Entry<String, List<Object[]>> entry : bySql.entrySet()) {
+                PreparedStatement stmt = dao.prepare(entry.getKey());
+                synchronized (stmt) {
+                    try {
+                        for (Object[] params : entry.getValue()) {
+                            LibraryDao.bind(stmt, params);
+                            stmt.addBatch();
+                        }
+                        stmt.executeBatch();
+                    } finally {
+                        stmt.clearBatch();
+                    }
+                }
+            }
+            connection.commit();
+        } catch (RuntimeException e) {
+            // Rolled back here, since turning autocommit back on below would commit the partial batch
+            try { connection.rollback(); } catch (SQLException ignored) {}
+            throw e;
+        } catch (SQLException e) {
+            // One bad row (e.g. a duplicate key) should not lose the rest of the batch
+            try { connection.rollback(); } catch (SQLException ignored) {}
+            writeIndividually(batch);
+        } finally {
+            try { connection.setAutoCommit(true); } catch (SQLException ignored) {}
+        }
+    }
+
+    private void writeIndividually(List<Mutation> batch) {
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            failed.addAndGet(batch.size());
+            return;
+        }
+        for (Mutation m : batch) {
+            try {
+                dao.update(m.sql, m.params);
+            } catch (SQLException | RuntimeException e) {
+                failed.incrementAndGet();
+            }
+        }
+    }
+}